@@ -0,0 +1,247 @@
+package com.android.ch3d.tilemap.model;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.android.ch3d.tilemap.activity.MainActivity;
+import com.android.ch3d.tilemap.provider.TilesProvider;
+import com.android.ch3d.tilemap.util.ImageWorker;
+import com.android.ch3d.tilemap.util.cache.TileDrawable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pans over tiles that are all in memory and checks that drawing the frames neither allocates on
+ * the main thread nor loads or decodes any tile.
+ */
+public class PanAllocationTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final int ZOOM = 10;
+
+	// small tiles keep the warm region far below any memory cache budget
+	private static final int TILE_SIZE = 64;
+
+	// the viewport pans over a region of REGION x REGION tiles, all of them loaded beforehand
+	private static final int REGION = 6;
+
+	private static final int VIEWPORT_TILES = 3;
+
+	private static final int PAN_STEP = 7;
+
+	private static final int PASSES = 5;
+
+	private static final long LOAD_TIMEOUT_MS = 10000;
+
+	private TilesManager mTilesManager;
+
+	private CountingTileLoader mTileLoader;
+
+	public PanAllocationTest() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final MainActivity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				// stop the activity's own loads, so nothing else writes to the shared memory cache
+				getInstrumentation().callActivityOnPause(activity);
+				mTileLoader = new CountingTileLoader(activity);
+				// commit any retain fragment the activity added, so that both managers share one cache
+				activity.getSupportFragmentManager().executePendingTransactions();
+				mTilesManager = new TilesManager(activity, new TestTilesProvider(), mTileLoader);
+				activity.getSupportFragmentManager().executePendingTransactions();
+				mTilesManager.onViewportChanged(0, 0, REGION - 1, REGION - 1);
+			}
+		});
+		warmUp();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		final MainActivity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mTilesManager.releaseFrames();
+				mTilesManager.onDestroy();
+				getInstrumentation().callActivityOnResume(activity);
+			}
+		});
+		super.tearDown();
+	}
+
+	public void testPanWithWarmCacheDoesNotAllocate() throws Throwable {
+		final int[] allocations = new int[1];
+		final int decodes = mTileLoader.getDecodes();
+		final int startedLoads = ImageWorker.getStartedLoads();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final int viewSize = VIEWPORT_TILES * TILE_SIZE;
+				final Bitmap target = Bitmap.createBitmap(viewSize, viewSize, Bitmap.Config.RGB_565);
+				final Canvas canvas = new Canvas(target);
+				final Rect dst = new Rect();
+				// one pass first, so that anything sized lazily has grown
+				pan(canvas, dst);
+				Debug.resetThreadAllocCount();
+				Debug.startAllocCounting();
+				for(int i = 0; i < PASSES; i++) {
+					pan(canvas, dst);
+				}
+				Debug.stopAllocCounting();
+				allocations[0] = Debug.getThreadAllocCount();
+				target.recycle();
+			}
+		});
+		assertEquals("objects allocated while panning", 0, allocations[0]);
+		assertEquals("tiles decoded while panning", decodes, mTileLoader.getDecodes());
+		assertEquals("loads started while panning", startedLoads, ImageWorker.getStartedLoads());
+	}
+
+	/**
+	 * Draws one frame per PAN_STEP pixels of a diagonal pan across the region, as TileView does.
+	 */
+	private void pan(final Canvas canvas, final Rect dst) {
+		final int maxOffset = (REGION - VIEWPORT_TILES) * TILE_SIZE;
+		for(int offset = 0; offset <= maxOffset; offset += PAN_STEP) {
+			final int first = offset / TILE_SIZE;
+			final int last = Math.min(REGION - 1, (offset + VIEWPORT_TILES * TILE_SIZE - 1) / TILE_SIZE);
+			mTilesManager.beginFrame();
+			for(int x = first; x <= last; x++) {
+				for(int y = first; y <= last; y++) {
+					final int left = x * TILE_SIZE - offset;
+					final int top = y * TILE_SIZE - offset;
+					dst.set(left, top, left + TILE_SIZE, top + TILE_SIZE);
+					assertTrue(mTilesManager.drawTile(x, y, canvas, dst));
+				}
+			}
+			mTilesManager.endFrame();
+		}
+	}
+
+	/**
+	 * Loads every tile of the region into the memory cache.
+	 */
+	private void warmUp() {
+		final boolean[] loaded = new boolean[1];
+		final long deadline = SystemClock.uptimeMillis() + LOAD_TIMEOUT_MS;
+		while(!loaded[0]) {
+			assertTrue("tiles did not load in time", SystemClock.uptimeMillis() < deadline);
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					boolean all = true;
+					for(int x = 0; x < REGION; x++) {
+						for(int y = 0; y < REGION; y++) {
+							final TileDrawable tile = mTilesManager.acquireTile(x, y);
+							if(tile != null) {
+								tile.release();
+							} else {
+								all = false;
+							}
+						}
+					}
+					loaded[0] = all;
+				}
+			});
+			if(!loaded[0]) {
+				SystemClock.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * Makes solid tiles instead of downloading them and counts how many it made.
+	 */
+	private static class CountingTileLoader extends ImageWorker {
+
+		private final AtomicInteger mDecodes = new AtomicInteger();
+
+		CountingTileLoader(final Context context) {
+			super(context);
+		}
+
+		int getDecodes() {
+			return mDecodes.get();
+		}
+
+		@Override
+		protected Bitmap processBitmap(final String url) {
+			mDecodes.incrementAndGet();
+			final Bitmap bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.RGB_565);
+			bitmap.eraseColor(Color.GRAY);
+			return bitmap;
+		}
+
+		@Override
+		protected boolean usesDiskCache() {
+			return false;
+		}
+	}
+
+	private static class TestTilesProvider implements TilesProvider {
+
+		// kept apart from the keys of the providers the app ships with
+		private static final int PROVIDER_ID = TileKey.MAX_PROVIDER_ID;
+
+		@Override
+		public Tile getTile(final int zoom, final int x, final int y) {
+			return TileFactory.create(x, y, getTileKey(zoom, x, y), "test://" + zoom + "/" + x + "/" + y);
+		}
+
+		@Override
+		public long getTileKey(final int zoom, final int x, final int y) {
+			return TileKey.pack(PROVIDER_ID, zoom, x, y);
+		}
+
+		@Override
+		public int getOriginX(final int zoom) {
+			return 0;
+		}
+
+		@Override
+		public int getOriginY(final int zoom) {
+			return 0;
+		}
+
+		@Override
+		public int getMinZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public int getMaxZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public int getDefaultZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public String getTileHost() {
+			return null;
+		}
+
+		@Override
+		public String[] getTileHostShards() {
+			return null;
+		}
+
+		@Override
+		public boolean hasOpaqueTiles() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import android.test.AndroidTestCase;
+
+import com.android.ch3d.tilemap.model.TileKey;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes tile packs with {@link TilePackWriter} and reads them back with {@link TilePack}: tiles
+ * added in any order are found by the binary search over the Z-order index, absent and out of
+ * range tiles are not, and truncated or corrupt files are rejected or read as misses.
+ */
+public class TilePackTest extends AndroidTestCase {
+
+	// kept apart from the keys of the providers the app ships with
+	private static final int PROVIDER_ID = TileKey.MAX_PROVIDER_ID;
+
+	private static final int ZOOM = 3;
+
+	// tiles of ZOOM in a GRID x GRID square, plus one on the next zoom
+	private static final int GRID = 4;
+
+	private File mFile;
+
+	private final List<Long> mKeys = new ArrayList<Long>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getContext().getCacheDir(), "test.tilepack");
+		mFile.delete();
+		mKeys.clear();
+		for(int y = GRID - 1; y >= 0; y--) {
+			for(int x = GRID - 1; x >= 0; x--) {
+				mKeys.add(TileKey.pack(PROVIDER_ID, ZOOM, x, y));
+			}
+		}
+		mKeys.add(TileKey.pack(PROVIDER_ID, ZOOM + 1, 1, 2));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		new File(mFile.getPath() + ".tmp").delete();
+		super.tearDown();
+	}
+
+	public void testRoundTripFindsEveryTile() throws IOException {
+		writePack(mKeys);
+		final TilePack pack = TilePack.open(mFile);
+		assertEquals(mKeys.size(), pack.getCount());
+		for(long key : mKeys) {
+			assertTile(key, pack.getTile(key));
+		}
+	}
+
+	public void testMissingTileIsNotFound() throws IOException {
+		writePack(mKeys);
+		final TilePack pack = TilePack.open(mFile);
+		// inside the range of packed keys, but not packed
+		assertNull(pack.getTile(TileKey.pack(PROVIDER_ID, ZOOM, 1, GRID)));
+		assertNull(pack.getTile(TileKey.pack(PROVIDER_ID, ZOOM + 1, 2, 1)));
+	}
+
+	public void testTileOutsideIndexIsNotFound() throws IOException {
+		writePack(mKeys);
+		final TilePack pack = TilePack.open(mFile);
+		// sorting before the first and after the last entry
+		assertNull(pack.getTile(TileKey.pack(0, 0, 0, 0)));
+		assertNull(pack.getTile(TileKey.pack(PROVIDER_ID, TileKey.MAX_ZOOM, 0, 0)));
+		assertNull(pack.getTile(TileKey.pack(PROVIDER_ID - 1, ZOOM, 0, 0)));
+	}
+
+	public void testEmptyPack() throws IOException {
+		writePack(new ArrayList<Long>());
+		final TilePack pack = TilePack.open(mFile);
+		assertEquals(0, pack.getCount());
+		assertNull(pack.getTile(mKeys.get(0)));
+	}
+
+	public void testDuplicateTileIsRejected() {
+		final List<Long> keys = new ArrayList<Long>(mKeys);
+		keys.add(mKeys.get(3));
+		try {
+			writePack(keys);
+			fail("duplicate tile written");
+		} catch(IOException e) {
+			// expected
+		}
+		assertFalse(mFile.exists());
+	}
+
+	public void testTruncatedDataIsReadAsMiss() throws IOException {
+		writePack(mKeys);
+		final byte[] bytes = readFile();
+		// the tile stored last runs up to the end of the file
+		Long lastKey = null;
+		final TilePack pack = TilePack.open(mFile);
+		for(long key : mKeys) {
+			if(pack.getTile(key).limit() == bytes.length) {
+				lastKey = key;
+			}
+		}
+		assertNotNull("no tile at the end of the pack", lastKey);
+
+		writeFile(bytes, bytes.length - 1);
+		final TilePack truncated = TilePack.open(mFile);
+		assertNull(truncated.getTile(lastKey));
+		for(long key : mKeys) {
+			if(key != lastKey.longValue()) {
+				assertTile(key, truncated.getTile(key));
+			}
+		}
+	}
+
+	public void testTruncatedIndexIsRejected() throws IOException {
+		writePack(mKeys);
+		final byte[] bytes = readFile();
+		writeFile(bytes, TilePack.HEADER_SIZE + TilePack.ENTRY_SIZE * 2);
+		assertNotPack();
+		writeFile(bytes, TilePack.HEADER_SIZE - 1);
+		assertNotPack();
+	}
+
+	public void testCorruptHeaderIsRejected() throws IOException {
+		writePack(mKeys);
+		final byte[] bytes = readFile();
+		bytes[0] ^= 0xFF;
+		writeFile(bytes, bytes.length);
+		assertNotPack();
+
+		bytes[0] ^= 0xFF;
+		// a negative entry count
+		bytes[8] = (byte) 0x80;
+		writeFile(bytes, bytes.length);
+		assertNotPack();
+	}
+
+	public void testCorruptIndexEntryIsReadAsMiss() throws IOException {
+		writePack(mKeys);
+		final byte[] bytes = readFile();
+		// point the first entry's data past the end of the file
+		final int offset = TilePack.HEADER_SIZE + 8;
+		bytes[offset] = 0x7F;
+		writeFile(bytes, bytes.length);
+		final TilePack pack = TilePack.open(mFile);
+		int found = 0;
+		for(long key : mKeys) {
+			if(pack.getTile(key) != null) {
+				found++;
+			}
+		}
+		assertEquals(mKeys.size() - 1, found);
+	}
+
+	private void assertNotPack() {
+		try {
+			TilePack.open(mFile);
+			fail("opened a corrupt pack");
+		} catch(IOException e) {
+			// expected
+		}
+	}
+
+	private void assertTile(final long key, final ByteBuffer tile) {
+		assertNotNull("tile " + key + " not found", tile);
+		final byte[] expected = tileData(key);
+		assertEquals(expected.length, tile.remaining());
+		for(byte b : expected) {
+			assertEquals(b, tile.get());
+		}
+	}
+
+	private void writePack(final List<Long> keys) throws IOException {
+		final TilePackWriter writer = new TilePackWriter();
+		for(long key : keys) {
+			writer.add(key, tileData(key));
+		}
+		writer.write(mFile);
+	}
+
+	/**
+	 * @return Bytes unique to the tile, of a length that varies between tiles
+	 */
+	private static byte[] tileData(final long key) {
+		final int seed = TileKey.zoom(key) * 31 * 31 + TileKey.x(key) * 31 + TileKey.y(key);
+		final byte[] data = new byte[16 + seed % 64];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (seed + i);
+		}
+		return data;
+	}
+
+	private byte[] readFile() throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+		try {
+			final byte[] bytes = new byte[(int) file.length()];
+			file.readFully(bytes);
+			return bytes;
+		} finally {
+			file.close();
+		}
+	}
+
+	private void writeFile(final byte[] bytes, final int length) throws IOException {
+		final FileOutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(bytes, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package com.android.ch3d.tilemap.util.downloader;
+
+import android.support.v4.app.FragmentManager;
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.android.ch3d.tilemap.activity.MainActivity;
+import com.android.ch3d.tilemap.model.Tile;
+import com.android.ch3d.tilemap.model.TileFactory;
+import com.android.ch3d.tilemap.model.TileKey;
+import com.android.ch3d.tilemap.provider.TilesProvider;
+import com.android.ch3d.tilemap.util.cache.ImageCacheBase;
+import com.android.ch3d.tilemap.util.cache.ImageCacheSimple;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs region downloads against tiles served from a local socket: a job cancelled partway and
+ * started again resumes without fetching any tile twice, and failed tiles are retried.
+ */
+public class RegionDownloadJobTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final int ZOOM = 10;
+
+	// 3 x 3 tiles at ZOOM
+	private static final double NORTH = 0.5;
+
+	private static final double WEST = 0;
+
+	private static final double SOUTH = 0;
+
+	private static final double EAST = 1;
+
+	private static final long TILES = 9;
+
+	// the directory MainActivity's tiles manager caches into
+	private static final String IMAGE_CACHE_DIR = "images";
+
+	private static final int TILE_SIZE = 256;
+
+	// region downloads never decode, any body will do
+	private static final byte[] TILE_BODY = new byte[512];
+
+	private TileServer mServer;
+
+	private ImageDownloader mDownloader;
+
+	private TilesProvider mTilesProvider;
+
+	private File mProgressFile;
+
+	public RegionDownloadJobTest() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final MainActivity activity = getActivity();
+		final ImageCacheSimple[] cache = new ImageCacheSimple[1];
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				// commit any retain fragment the activity added, so that both share one cache on the directory
+				final FragmentManager fm = activity.getSupportFragmentManager();
+				fm.executePendingTransactions();
+				cache[0] = ImageCacheSimple.getInstance(fm, new ImageCacheBase.ImageCacheParams(activity, IMAGE_CACHE_DIR),
+				                                        TILE_SIZE);
+				fm.executePendingTransactions();
+			}
+		});
+		mDownloader = new ImageDownloader(activity, TILE_SIZE);
+		mDownloader.addImageCache(cache[0]);
+		mServer = new TileServer();
+		mServer.start();
+		// a fresh path per run, so no tile is in the disk cache already
+		mTilesProvider = new TestTilesProvider("http://127.0.0.1:" + mServer.getPort() + "/" + System.currentTimeMillis());
+		mProgressFile = new File(activity.getCacheDir(), "region-test.progress");
+		mProgressFile.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		mProgressFile.delete();
+		super.tearDown();
+	}
+
+	public void testResumeSkipsCachedTilesAndFetchesEachOnce() {
+		final RecordingListener first = runJob(5);
+		assertFalse("cancelled run completed", first.mCompleted);
+		assertEquals(5, first.mDone);
+		assertTrue("progress not kept", mProgressFile.isFile());
+		assertEquals(5, mServer.getServedCount());
+
+		final RecordingListener second = runJob(-1);
+		assertTrue("resumed run did not complete", second.mCompleted);
+		assertEquals(TILES, second.mDone);
+		assertEquals("resumed run skipped tiles", 0, second.mSkipped);
+		assertFalse("progress kept after completing", mProgressFile.isFile());
+		assertEquals(TILES, mServer.getServedCount());
+		mServer.assertEachServedOnce();
+
+		// without progress every tile is looked at again and found in the disk cache
+		final RecordingListener third = runJob(-1);
+		assertTrue(third.mCompleted);
+		assertEquals(TILES, third.mSkipped);
+		assertEquals(TILES, mServer.getServedCount());
+	}
+
+	public void testFailedTileIsRetriedOnResume() {
+		mServer.failOnce(2, 0);
+		final RecordingListener first = runJob(5);
+		assertFalse(first.mCompleted);
+		assertEquals(1, first.mFailed);
+		// tile (2, 0) is the third one in row order
+		assertEquals(4, mServer.getServedCount());
+
+		final RecordingListener second = runJob(-1);
+		assertTrue("tile was not retried", second.mCompleted);
+		assertEquals(0, second.mFailed);
+		// the two tiles done after the failed one are found in the disk cache
+		assertEquals(2, second.mSkipped);
+		assertEquals(TILES, mServer.getServedCount());
+		mServer.assertEachServedOnce();
+	}
+
+	public void testRunWithFailedTileIsNotComplete() {
+		mServer.failOnce(1, 1);
+		final RecordingListener first = runJob(-1);
+		assertFalse("run with a failed tile completed", first.mCompleted);
+		assertEquals(1, first.mFailed);
+		assertTrue("progress not kept", mProgressFile.isFile());
+
+		final RecordingListener second = runJob(-1);
+		assertTrue(second.mCompleted);
+		assertEquals(TILES, mServer.getServedCount());
+		mServer.assertEachServedOnce();
+	}
+
+	/**
+	 * Runs a job over the region on one thread, so tiles are fetched in order.
+	 *
+	 * @param cancelAfter Number of tiles after which the job is cancelled, or -1
+	 */
+	private RecordingListener runJob(final int cancelAfter) {
+		final RegionDownloadJob job = new RegionDownloadJob(mTilesProvider, mDownloader, NORTH, WEST, SOUTH, EAST, ZOOM, ZOOM,
+		                                                    1, mProgressFile);
+		assertEquals(TILES, job.getTileCount());
+		final RecordingListener listener = new RecordingListener(job, cancelAfter);
+		job.setListener(listener);
+		job.run();
+		return listener;
+	}
+
+	private static class RecordingListener implements RegionDownloadJob.Listener {
+
+		private final RegionDownloadJob mJob;
+
+		private final int mCancelAfter;
+
+		private volatile long mDone;
+
+		private volatile long mSkipped;
+
+		private volatile long mFailed;
+
+		private volatile boolean mCompleted;
+
+		RecordingListener(final RegionDownloadJob job, final int cancelAfter) {
+			mJob = job;
+			mCancelAfter = cancelAfter;
+		}
+
+		@Override
+		public void onProgress(final long done, final long total, final long skipped, final long failed,
+		                       final double bytesPerSecond) {
+			mDone = done;
+			mSkipped = skipped;
+			mFailed = failed;
+			if(done == mCancelAfter) {
+				mJob.cancel();
+			}
+		}
+
+		@Override
+		public void onFinished(final boolean completed) {
+			mCompleted = completed;
+		}
+	}
+
+	/**
+	 * Serves one request per connection and counts the tiles served by path.
+	 */
+	private static class TileServer extends Thread {
+
+		private final ServerSocket mServerSocket;
+
+		private final ConcurrentHashMap<String, AtomicInteger> mServed = new ConcurrentHashMap<String, AtomicInteger>();
+
+		private final Set<String> mFailOnce = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		TileServer() throws IOException {
+			super("TileServer");
+			mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+		}
+
+		int getPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		/**
+		 * Answers the first request for the tile, given relative to the region, with a server error.
+		 */
+		void failOnce(final int column, final int row) {
+			mFailOnce.add(tilePath(RegionDownloadJob.tileX(WEST, ZOOM) + column, RegionDownloadJob.tileY(NORTH, ZOOM) + row));
+		}
+
+		int getServedCount() {
+			int count = 0;
+			for(AtomicInteger served : mServed.values()) {
+				count += served.get();
+			}
+			return count;
+		}
+
+		void assertEachServedOnce() {
+			for(String path : mServed.keySet()) {
+				assertEquals(path + " fetched again", 1, mServed.get(path).get());
+			}
+		}
+
+		void close() {
+			try {
+				mServerSocket.close();
+			} catch(IOException e) {
+				// nothing to do
+			}
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				final Socket socket;
+				try {
+					socket = mServerSocket.accept();
+				} catch(IOException e) {
+					// closed
+					return;
+				}
+				try {
+					serve(socket);
+				} catch(IOException e) {
+					// the client went away
+				} finally {
+					// sockets are only Closeable from API 19 on
+					try {
+						socket.close();
+					} catch(IOException e) {
+						// nothing to do
+					}
+				}
+			}
+		}
+
+		private void serve(final Socket socket) throws IOException {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			final String requestLine = reader.readLine();
+			String header = requestLine;
+			while(header != null && header.length() > 0) {
+				header = reader.readLine();
+			}
+			if(requestLine == null) {
+				return;
+			}
+			final String url = requestLine.split(" ")[1];
+			final String path = url.substring(url.indexOf('/', 1));
+			final OutputStream out = socket.getOutputStream();
+			if(mFailOnce.remove(path)) {
+				out.write("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+			} else {
+				AtomicInteger served = mServed.get(path);
+				if(served == null) {
+					mServed.putIfAbsent(path, new AtomicInteger());
+					served = mServed.get(path);
+				}
+				served.incrementAndGet();
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/png\r\nContent-Length: " + TILE_BODY.length
+						+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				out.write(TILE_BODY);
+			}
+			out.flush();
+		}
+	}
+
+	private static String tilePath(final int x, final int y) {
+		return "/" + ZOOM + "/" + x + "/" + y + ".png";
+	}
+
+	private static class TestTilesProvider implements TilesProvider {
+
+		// kept apart from the keys of the providers the app ships with
+		private static final int PROVIDER_ID = TileKey.MAX_PROVIDER_ID;
+
+		private final String mBaseUrl;
+
+		TestTilesProvider(final String baseUrl) {
+			mBaseUrl = baseUrl;
+		}
+
+		@Override
+		public Tile getTile(final int zoom, final int x, final int y) {
+			return TileFactory.create(x, y, getTileKey(zoom, x, y), mBaseUrl + "/" + zoom + "/" + x + "/" + y + ".png");
+		}
+
+		@Override
+		public long getTileKey(final int zoom, final int x, final int y) {
+			return TileKey.pack(PROVIDER_ID, zoom, x, y);
+		}
+
+		@Override
+		public int getOriginX(final int zoom) {
+			return 0;
+		}
+
+		@Override
+		public int getOriginY(final int zoom) {
+			return 0;
+		}
+
+		@Override
+		public int getMinZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public int getMaxZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public int getDefaultZoom() {
+			return ZOOM;
+		}
+
+		@Override
+		public String getTileHost() {
+			return null;
+		}
+
+		@Override
+		public String[] getTileHostShards() {
+			return null;
+		}
+
+		@Override
+		public boolean hasOpaqueTiles() {
+			return true;
+		}
+	}
+}
@@ -1,47 +1,113 @@
 package com.android.ch3d.tilemap.activity;
 
+import android.content.ComponentCallbacks2;
+import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 
 import com.android.ch3d.tilemap.R;
 import com.android.ch3d.tilemap.model.TilesManager;
+import com.android.ch3d.tilemap.provider.MBTilesProvider;
 import com.android.ch3d.tilemap.provider.OpenCycleMapTileProvider;
+import com.android.ch3d.tilemap.provider.TilesProvider;
+import com.android.ch3d.tilemap.util.mbtiles.MBTilesLoader;
 import com.android.ch3d.tilemap.widget.TileView;
 
+import java.io.File;
+
 public class MainActivity extends AppCompatActivity {
 
+	private static final String TAG = MainActivity.class.getSimpleName();
+
+	// offline tiles, used instead of OpenCycleMap when present in the app's external files dir
+	private static final String OFFLINE_TILES_FILE = "tiles.mbtiles";
+
 	private TileView mTilesLayout;
 
-	private OpenCycleMapTileProvider mTilesProvider;
+	private TilesProvider mTilesProvider;
 
+	private MBTilesLoader mOfflineTilesLoader;
+
+	// null until the tiles provider has been opened, see OpenProviderTask
 	private TilesManager mTilesManager;
 
+	private OpenProviderTask mOpenProviderTask;
+
+	private boolean mResumed;
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
 
 		mTilesLayout = (TileView) findViewById(R.id.tiles);
-		mTilesProvider = new OpenCycleMapTileProvider();
-		mTilesManager = new TilesManager(this, mTilesProvider);
+		mOpenProviderTask = new OpenProviderTask(new File(getExternalFilesDir(null), OFFLINE_TILES_FILE));
+		mOpenProviderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	private void setTilesProvider(TilesProvider tilesProvider) {
+		mTilesProvider = tilesProvider;
+		if(tilesProvider instanceof MBTilesProvider) {
+			mOfflineTilesLoader = new MBTilesLoader(this, ((MBTilesProvider) tilesProvider).getFile(),
+			                                        getResources().getInteger(R.integer.config_tile_loader_threads),
+			                                        getResources().getDimensionPixelSize(R.dimen.item_size));
+			mTilesManager = new TilesManager(this, tilesProvider, mOfflineTilesLoader);
+		} else {
+			mTilesManager = new TilesManager(this, tilesProvider);
+		}
+		if(!mResumed) {
+			mTilesManager.onPause();
+		}
 		mTilesLayout.setTilesManager(mTilesManager);
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if(mTilesManager != null) {
+			mTilesManager.onTrimMemory(level);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		if(mTilesManager != null) {
+			mTilesManager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+	}
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		mOpenProviderTask.cancel(false);
+		if(mTilesManager != null) {
+			// before the loader is closed, so no load starts reading a closed file
+			mTilesManager.onDestroy();
+		}
+		if(mOfflineTilesLoader != null) {
+			mOfflineTilesLoader.close();
+		}
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
-		mTilesManager.onPause();
+		mResumed = false;
+		if(mTilesManager != null) {
+			mTilesManager.onPause();
+		}
 	}
 
 	@Override
 	public void onResume() {
 		super.onResume();
-		mTilesManager.onResume();
+		mResumed = true;
+		if(mTilesManager != null) {
+			mTilesManager.onResume();
+		}
 	}
 
 	@Override
@@ -49,4 +115,33 @@ public class MainActivity extends AppCompatActivity {
 		super.onPostResume();
 		mTilesLayout.renderTiles();
 	}
+
+	/**
+	 * Opens the offline tiles if there are any, falling back to OpenCycleMap. Reading the MBTiles
+	 * metadata is disk access, so it is kept off the main thread.
+	 */
+	private class OpenProviderTask extends AsyncTask<Void, Void, TilesProvider> {
+		private final File mOfflineTiles;
+
+		OpenProviderTask(File offlineTiles) {
+			mOfflineTiles = offlineTiles;
+		}
+
+		@Override
+		protected TilesProvider doInBackground(Void... params) {
+			if(mOfflineTiles.isFile()) {
+				try {
+					return new MBTilesProvider(mOfflineTiles);
+				} catch(SQLiteException e) {
+					Log.e(TAG, "Could not open offline tiles", e);
+				}
+			}
+			return new OpenCycleMapTileProvider();
+		}
+
+		@Override
+		protected void onPostExecute(TilesProvider tilesProvider) {
+			setTilesProvider(tilesProvider);
+		}
+	}
 }
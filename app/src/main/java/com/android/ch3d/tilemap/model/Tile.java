@@ -8,11 +8,14 @@ public class Tile {
 
 	private final int mY;
 
+	private final long mKey;
+
 	private final String mImgUrl;
 
-	Tile(int x, int y, String imgUrl) {
+	Tile(int x, int y, long key, String imgUrl) {
 		mX = x;
 		mY = y;
+		mKey = key;
 		mImgUrl = imgUrl;
 	}
 
@@ -40,6 +43,13 @@ public class Tile {
 		return true;
 	}
 
+	/**
+	 * @return The packed {@link TileKey} of the tile
+	 */
+	public long getKey() {
+		return mKey;
+	}
+
 	public String getImgUrl() {
 		return mImgUrl;
 	}
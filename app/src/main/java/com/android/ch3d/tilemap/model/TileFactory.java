@@ -4,7 +4,7 @@ package com.android.ch3d.tilemap.model;
  * Created by Ch3D on 23.04.2015.
  */
 public class TileFactory {
-	public static Tile create(final int x, final int y, final String url) {
-		return new Tile(x, y, url);
+	public static Tile create(final int x, final int y, final long key, final String url) {
+		return new Tile(x, y, key, url);
 	}
 }
@@ -0,0 +1,41 @@
+package com.android.ch3d.tilemap.model;
+
+/**
+ * Packs a tile address into a single long: 6 bits of provider id, 6 bits of zoom and 26 bits each
+ * of x and y, which covers every tile up to zoom 26.
+ */
+public final class TileKey {
+
+	public static final int MAX_PROVIDER_ID = (1 << 6) - 1;
+
+	public static final int MAX_ZOOM = 26;
+
+	private static final int COORDINATE_BITS = 26;
+
+	private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+	public static long pack(final int providerId, final int zoom, final int x, final int y) {
+		return ((long) (providerId & 0x3F) << 58)
+				| ((long) (zoom & 0x3F) << 52)
+				| ((x & COORDINATE_MASK) << COORDINATE_BITS)
+				| (y & COORDINATE_MASK);
+	}
+
+	public static int providerId(final long key) {
+		return (int) (key >>> 58);
+	}
+
+	public static int zoom(final long key) {
+		return (int) ((key >>> 52) & 0x3F);
+	}
+
+	public static int x(final long key) {
+		return (int) ((key >>> COORDINATE_BITS) & COORDINATE_MASK);
+	}
+
+	public static int y(final long key) {
+		return (int) (key & COORDINATE_MASK);
+	}
+
+	private TileKey() {}
+}
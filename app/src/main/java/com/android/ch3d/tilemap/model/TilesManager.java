@@ -1,58 +1,485 @@
 package com.android.ch3d.tilemap.model;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.util.DisplayMetrics;
+import android.util.Log;
 
+import com.android.ch3d.tilemap.BuildConfig;
 import com.android.ch3d.tilemap.R;
 import com.android.ch3d.tilemap.provider.TilesProvider;
 import com.android.ch3d.tilemap.util.ImageWorker;
+import com.android.ch3d.tilemap.util.TileScheduler;
+import com.android.ch3d.tilemap.util.Utils;
 import com.android.ch3d.tilemap.util.cache.ImageCacheBase;
 import com.android.ch3d.tilemap.util.cache.ImageCacheSimple;
+import com.android.ch3d.tilemap.util.cache.TileDrawable;
+import com.android.ch3d.tilemap.util.downloader.DownloadStats;
 import com.android.ch3d.tilemap.util.downloader.ImageDownloader;
+import com.android.ch3d.tilemap.util.downloader.ImageDownloaderBase;
+import com.android.ch3d.tilemap.util.downloader.RegionDownloadJob;
+
+import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Created by Ch3D on 22.04.2015.
  */
 public class TilesManager {
 
+	private static final String TAG = TilesManager.class.getSimpleName();
+
 	private static final String IMAGE_CACHE_DIR = "images";
 
+	// pre-seeded tiles, read before the disk cache when present in the app's external files dir
+	private static final String TILE_PACK_FILE = "tiles.pack";
+
+	// assumed size of a tile until enough have been downloaded to measure it
+	private static final int DEFAULT_TILE_BYTES = 16 * 1024;
+
+	// how many zoom levels up a cached ancestor is looked for while a tile loads
+	private static final int MAX_PLACEHOLDER_LEVELS = 4;
+
+	// few enough not to starve the loads of the visible tiles
+	private static final int REGION_DOWNLOAD_THREADS = 2;
+
+	// share of the heap the memory cache may grow to, whatever the viewport
+	private static final float MEM_CACHE_PERCENT = 0.25f;
+
+	private static final float LOW_RAM_MEM_CACHE_PERCENT = 0.125f;
+
+	// the tiles around the viewport are kept for the current zoom and, as placeholders, the last one
+	private static final int MEM_CACHE_ZOOM_LEVELS = 2;
+
 	private ImageWorker mImageDownloader;
 
+	private ImageCacheSimple mImageCache;
+
+	// upper bound for the memory cache and the decoded size of one tile, see updateMemCacheSize()
+	private long mMemCacheMaxBytes;
+
+	private long mTileBytes;
+
+	private final int mMemCacheMargin;
+
+	private int mMemCacheTiles;
+
+	private TileScheduler mTileScheduler;
+
+	private final int mCancelMargin;
+
+	private boolean mPrefetchEnabled;
+
+	private final long mPrefetchBudget;
+
+	private long mPrefetchTokens;
+
+	private long mPrefetchRefillTime;
+
+	private int mVisibleLeft;
+
+	private int mVisibleTop;
+
+	private int mVisibleRight;
+
+	private int mVisibleBottom;
+
+	private int mZoom;
+
+	private final Rect mPlaceholderSrc = new Rect();
+
+	private final Rect mPlaceholderDst = new Rect();
+
+	private final Paint mPlaceholderPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	// tiles drawn on a hardware-accelerated canvas in this and the previous frame, still referenced
+	// because RenderThread draws the recorded bitmaps after onDraw returns
+	private ArrayList<TileDrawable> mFrameTiles = new ArrayList<TileDrawable>();
+
+	private ArrayList<TileDrawable> mPreviousFrameTiles = new ArrayList<TileDrawable>();
+
 	private final Context mContext;
 
 	private final TilesProvider mTilesProvider;
 
 	public TilesManager(FragmentActivity context, TilesProvider tilesProvider) {
+		this(context, tilesProvider, null);
+	}
+
+	/**
+	 * @param tileLoader Loader matching the provider, or null to download tiles over HTTP
+	 */
+	public TilesManager(FragmentActivity context, TilesProvider tilesProvider, ImageWorker tileLoader) {
 		mContext = context;
 		mTilesProvider = tilesProvider;
-		initImageCache(context);
+		mZoom = tilesProvider.getDefaultZoom();
+		mCancelMargin = context.getResources().getInteger(R.integer.config_tile_cancel_margin);
+		mMemCacheMargin = Math.max(mCancelMargin, context.getResources().getInteger(R.integer.config_prefetch_ring));
+		mPrefetchEnabled = context.getResources().getBoolean(R.bool.config_prefetch_enabled);
+		mPrefetchBudget = context.getResources().getInteger(R.integer.config_prefetch_budget_kb_per_second) * 1024L;
+		mPrefetchTokens = mPrefetchBudget;
+		mPrefetchRefillTime = SystemClock.uptimeMillis();
+		initImageCache(context, tileLoader);
 	}
 
-	private void initImageCache(FragmentActivity context) {
+	private void initImageCache(FragmentActivity context, ImageWorker tileLoader) {
 		ImageCacheBase.ImageCacheParams cacheParams = new ImageCacheBase.ImageCacheParams(context, IMAGE_CACHE_DIR);
-		cacheParams.setMemCacheSizePercent(0.25f);
+		cacheParams.setMemCacheSizePercent(Utils.isLowRamDevice(context) ? LOW_RAM_MEM_CACHE_PERCENT : MEM_CACHE_PERCENT);
+		mMemCacheMaxBytes = cacheParams.memCacheSize * 1024L;
+		cacheParams.decodeConfig = mTilesProvider.hasOpaqueTiles() ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+		cacheParams.tilePackFile = new File(context.getExternalFilesDir(null), TILE_PACK_FILE);
 
 		final DisplayMetrics displayMetrics = new DisplayMetrics();
 		context.getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
 
 		final int defaultImageSize = mContext.getResources().getDimensionPixelSize(R.dimen.item_size);
-		mImageDownloader = new ImageDownloader(context, defaultImageSize);
-		mImageDownloader.addImageCache(ImageCacheSimple.getInstance(context.getSupportFragmentManager(), cacheParams, defaultImageSize));
+		mTileBytes = (long) defaultImageSize * defaultImageSize * ImageCacheBase.getBytesPerPixel(cacheParams.decodeConfig);
+		if(tileLoader != null) {
+			mImageDownloader = tileLoader;
+		} else {
+			final ImageDownloader downloader = new ImageDownloader(context, defaultImageSize);
+			if(mTilesProvider.getTileHost() != null) {
+				downloader.setHostShards(mTilesProvider.getTileHost(), mTilesProvider.getTileHostShards());
+			}
+			mImageDownloader = downloader;
+		}
+		mImageCache = ImageCacheSimple.getInstance(context.getSupportFragmentManager(), cacheParams, defaultImageSize);
+		mImageDownloader.addImageCache(mImageCache);
+
+		mTileScheduler = new TileScheduler(mContext.getResources().getInteger(R.integer.config_tile_loader_threads));
+		mImageDownloader.setTileScheduler(mTileScheduler);
 	}
 
 //	public void loadTile(int x, int y, ImageView imageView) {
 //		mImageDownloader.loadImage(mTilesProvider.getTile(x, y).getImgUrl(), imageView);
 //	}
 
-	public void drawBitmap(int x, int y, Canvas canvas) {
-		mImageDownloader.loadImage(mTilesProvider.getTile(x, y).getImgUrl(), new ImageWorker.Holder(canvas, x, y));
+	public int getZoom() {
+		return mZoom;
+	}
+
+	public int getMinZoom() {
+		return mTilesProvider.getMinZoom();
+	}
+
+	public int getMaxZoom() {
+		return mTilesProvider.getMaxZoom();
+	}
+
+	/**
+	 * @return true if the provider's tiles never have transparent pixels
+	 */
+	public boolean hasOpaqueTiles() {
+		return mTilesProvider.hasOpaqueTiles();
+	}
+
+	/**
+	 * Switches to the given zoom, clamped to the provider's range, and cancels the loads of every
+	 * other zoom. Tiles of the old zoom stay in memory to serve as placeholders.
+	 *
+	 * @return The zoom now in use
+	 */
+	public int setZoom(int zoom) {
+		zoom = Math.max(getMinZoom(), Math.min(getMaxZoom(), zoom));
+		if(zoom != mZoom) {
+			mZoom = zoom;
+			mImageDownloader.cancelLoadsNotAtZoom(zoom);
+		}
+		return mZoom;
+	}
+
+	/**
+	 * @return Absolute column of the tile at relative column 0 on the given zoom
+	 */
+	public int getOriginX(int zoom) {
+		return mTilesProvider.getOriginX(zoom);
+	}
+
+	/**
+	 * @return Absolute row of the tile at relative row 0 on the given zoom
+	 */
+	public int getOriginY(int zoom) {
+		return mTilesProvider.getOriginY(zoom);
+	}
+
+	/**
+	 * Starts a frame drawn with {@link #drawTile}. Tiles drawn on a hardware-accelerated canvas are
+	 * only recorded, so they stay referenced until the end of the next frame.
+	 */
+	public void beginFrame() {
+		final ArrayList<TileDrawable> previous = mPreviousFrameTiles;
+		mPreviousFrameTiles = mFrameTiles;
+		mFrameTiles = previous;
+	}
+
+	/**
+	 * Releases the tiles of the previous frame, now that this one holds the tiles it drew.
+	 */
+	public void endFrame() {
+		releaseTiles(mPreviousFrameTiles);
+	}
+
+	/**
+	 * Releases every tile still held for drawn frames, e.g. once the view is detached.
+	 */
+	public void releaseFrames() {
+		releaseTiles(mPreviousFrameTiles);
+		releaseTiles(mFrameTiles);
+	}
+
+	private static void releaseTiles(ArrayList<TileDrawable> tiles) {
+		for(int i = tiles.size() - 1; i >= 0; i--) {
+			tiles.get(i).release();
+		}
+		tiles.clear();
+	}
+
+	/**
+	 * Releases a drawn tile, or keeps it until the next frame if the canvas only recorded the draw.
+	 */
+	private void releaseAfterDraw(TileDrawable tile, Canvas canvas) {
+		if(canvas.isHardwareAccelerated()) {
+			mFrameTiles.add(tile);
+		} else {
+			tile.release();
+		}
+	}
+
+	/**
+	 * Draws the tile into dst if it is in memory, otherwise starts its load and draws whatever
+	 * cached ancestor or children of the tile can stand in for it. Allocates nothing unless a new
+	 * load has to be started. Calls must be made between {@link #beginFrame()} and
+	 * {@link #endFrame()}.
+	 *
+	 * @return true if the tile itself was drawn, false if a placeholder or nothing was drawn
+	 */
+	public boolean drawTile(int x, int y, Canvas canvas, Rect dst) {
+		final TileDrawable tile = acquireTile(x, y);
+		if(tile != null) {
+			try {
+				canvas.drawBitmap(tile.getBitmap(), null, dst, null);
+			} finally {
+				releaseAfterDraw(tile, canvas);
+			}
+			return true;
+		}
+		if(!drawAncestor(x, y, canvas, dst)) {
+			drawChildren(x, y, canvas, dst);
+		}
+		return false;
+	}
+
+	private boolean drawAncestor(int x, int y, Canvas canvas, Rect dst) {
+		final int tileX = mTilesProvider.getOriginX(mZoom) + x;
+		final int tileY = mTilesProvider.getOriginY(mZoom) + y;
+		for(int levels = 1; levels <= MAX_PLACEHOLDER_LEVELS && mZoom - levels >= getMinZoom(); levels++) {
+			final int zoom = mZoom - levels;
+			final long key = mTilesProvider.getTileKey(zoom, (tileX >> levels) - mTilesProvider.getOriginX(zoom),
+			                                           (tileY >> levels) - mTilesProvider.getOriginY(zoom));
+			final TileDrawable ancestor = mImageDownloader.acquireCachedTile(key);
+			if(ancestor != null) {
+				try {
+					final Bitmap bitmap = ancestor.getBitmap();
+					// the tile covers a 1 / 2^levels wide square of its ancestor
+					final int mask = (1 << levels) - 1;
+					final int width = bitmap.getWidth() >> levels;
+					final int height = bitmap.getHeight() >> levels;
+					final int left = (tileX & mask) * width;
+					final int top = (tileY & mask) * height;
+					mPlaceholderSrc.set(left, top, left + width, top + height);
+					canvas.drawBitmap(bitmap, mPlaceholderSrc, dst, mPlaceholderPaint);
+				} finally {
+					releaseAfterDraw(ancestor, canvas);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void drawChildren(int x, int y, Canvas canvas, Rect dst) {
+		final int zoom = mZoom + 1;
+		if(zoom > getMaxZoom()) {
+			return;
+		}
+		final int childX = ((mTilesProvider.getOriginX(mZoom) + x) << 1) - mTilesProvider.getOriginX(zoom);
+		final int childY = ((mTilesProvider.getOriginY(mZoom) + y) << 1) - mTilesProvider.getOriginY(zoom);
+		final int centerX = (dst.left + dst.right) / 2;
+		final int centerY = (dst.top + dst.bottom) / 2;
+		for(int j = 0; j < 2; j++) {
+			for(int i = 0; i < 2; i++) {
+				final TileDrawable child = mImageDownloader.acquireCachedTile(mTilesProvider.getTileKey(zoom, childX + i, childY + j));
+				if(child != null) {
+					mPlaceholderDst.set(i == 0 ? dst.left : centerX, j == 0 ? dst.top : centerY,
+					                    i == 0 ? centerX : dst.right, j == 0 ? centerY : dst.bottom);
+					try {
+						canvas.drawBitmap(child.getBitmap(), null, mPlaceholderDst, mPlaceholderPaint);
+					} finally {
+						releaseAfterDraw(child, canvas);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The tile, with a reference the caller must release, if it is in memory, otherwise
+	 * null while the tile loads
+	 */
+	public TileDrawable acquireTile(int x, int y) {
+		// the tile descriptor and its url are only built when a new load has to be started
+		final long key = mTilesProvider.getTileKey(mZoom, x, y);
+		final TileDrawable cached = mImageDownloader.acquireVisibleTile(key);
+		if(cached != null || mImageDownloader.joinPendingLoad(key)) {
+			return cached;
+		}
+		final Tile tile = mTilesProvider.getTile(mZoom, x, y);
+		return mImageDownloader.acquireTile(key, tile.getImgUrl(), x, y);
+	}
+
+	/**
+	 * @return true if a load of the tile on the current zoom is in flight
+	 */
+	public boolean isTileLoading(int x, int y) {
+		return mImageDownloader.isLoading(mTilesProvider.getTileKey(mZoom, x, y));
+	}
+
+	public void setOnTileLoadedListener(ImageWorker.OnTileLoadedListener listener) {
+		mImageDownloader.setOnTileLoadedListener(listener);
+	}
+
+	/**
+	 * Called with the visible tile range (inclusive) whenever it changes. Re-orders queued loads
+	 * and cancels the ones that fell outside the range plus the cancel margin.
+	 */
+	public void onViewportChanged(int left, int top, int right, int bottom) {
+		mVisibleLeft = left;
+		mVisibleTop = top;
+		mVisibleRight = right;
+		mVisibleBottom = bottom;
+		mTileScheduler.updateViewport(left, top, right, bottom);
+		mImageDownloader.cancelLoadsOutside(left - mCancelMargin, top - mCancelMargin,
+		                                    right + mCancelMargin, bottom + mCancelMargin);
+		updateMemCacheSize(right - left + 1, bottom - top + 1);
+	}
+
+	/**
+	 * Sizes the memory cache to the tiles that fit the viewport plus the loading and prefetch
+	 * margin around it, for the current and the previous zoom, bounded by a share of the heap.
+	 */
+	private void updateMemCacheSize(int columns, int rows) {
+		final int tiles = (columns + 2 * mMemCacheMargin) * (rows + 2 * mMemCacheMargin);
+		if(tiles == mMemCacheTiles) {
+			return;
+		}
+		mMemCacheTiles = tiles;
+		final long maxBytes = Math.min(tiles * MEM_CACHE_ZOOM_LEVELS * mTileBytes, mMemCacheMaxBytes);
+		mImageCache.setMemCacheMaxSize(maxBytes);
+		if(BuildConfig.DEBUG) {
+			Log.d(TAG, "Memory cache sized for " + tiles + " tiles: " + maxBytes / 1024 + " KB");
+		}
+	}
+
+	/**
+	 * Trims the caches by the given {@link android.content.ComponentCallbacks2} trim level.
+	 */
+	public void onTrimMemory(int level) {
+		mImageCache.onTrimMemory(level);
+	}
+
+	/**
+	 * Creates a job that downloads the given region into the disk cache for offline use; run it on
+	 * a background thread.
+	 *
+	 * @return The job, or null if tiles are not downloaded over HTTP or the region would not fit
+	 * into the disk cache, whose eviction would then drop the region's own tiles
+	 */
+	public RegionDownloadJob newRegionDownloadJob(double north, double west, double south, double east, int minZoom, int maxZoom,
+	                                              File progressFile) {
+		if(!(mImageDownloader instanceof ImageDownloader)) {
+			return null;
+		}
+		final RegionDownloadJob job = new RegionDownloadJob(mTilesProvider, (ImageDownloader) mImageDownloader, north, west,
+		                                                    south, east, minZoom, maxZoom, REGION_DOWNLOAD_THREADS,
+		                                                    progressFile);
+		final long regionBytes = job.getTileCount() * getAverageTileBytes();
+		if(regionBytes > mImageCache.getParams().diskCacheSize) {
+			Log.w(TAG, "newRegionDownloadJob - region of " + job.getTileCount() + " tiles needs about " + regionBytes
+					+ " bytes, more than the disk cache holds");
+			return null;
+		}
+		return job;
+	}
+
+	public boolean isPrefetchEnabled() {
+		return mPrefetchEnabled;
+	}
+
+	public void setPrefetchEnabled(boolean prefetchEnabled) {
+		mPrefetchEnabled = prefetchEnabled;
+		if(!prefetchEnabled) {
+			mImageDownloader.cancelPrefetchesOutside(0, 0, -1, -1);
+		}
+	}
+
+	/**
+	 * Starts low priority loads for the tiles of the range (inclusive) that are not visible yet, as
+	 * far as the prefetch bandwidth budget allows. Prefetches outside the range are cancelled.
+	 */
+	public void prefetch(int left, int top, int right, int bottom) {
+		if(!mPrefetchEnabled) {
+			return;
+		}
+		mImageDownloader.cancelPrefetchesOutside(left, top, right, bottom);
+
+		final long now = SystemClock.uptimeMillis();
+		mPrefetchTokens = Math.min(mPrefetchBudget, mPrefetchTokens + (now - mPrefetchRefillTime) * mPrefetchBudget / 1000);
+		mPrefetchRefillTime = now;
+
+		final long tileBytes = getAverageTileBytes();
+		for(int y = top; y <= bottom; y++) {
+			for(int x = left; x <= right; x++) {
+				if(mPrefetchTokens < tileBytes) {
+					return;
+				}
+				if(x >= mVisibleLeft && x <= mVisibleRight && y >= mVisibleTop && y <= mVisibleBottom) {
+					continue;
+				}
+				final Tile tile = mTilesProvider.getTile(mZoom, x, y);
+				if(mImageDownloader.prefetchImage(tile.getKey(), tile.getImgUrl(), x, y)) {
+					mPrefetchTokens -= tileBytes;
+				}
+			}
+		}
+	}
+
+	private static long getAverageTileBytes() {
+		final DownloadStats stats = ImageDownloaderBase.getDownloadStats();
+		final long downloads = stats.getDownloads();
+		return downloads == 0 ? DEFAULT_TILE_BYTES : Math.max(1, stats.getBytes() / downloads);
+	}
+
+	/**
+	 * Cancels the loads of this manager and stops its loader threads; call when its activity is
+	 * destroyed. The manager cannot load tiles afterwards.
+	 */
+	public void onDestroy() {
+		mImageDownloader.cancelAllLoads();
+		mTileScheduler.shutdown();
 	}
 
 	public void onPause() {
 		mImageDownloader.setPaused(true);
+		if(BuildConfig.DEBUG) {
+			Log.d(TAG, "Loads started = " + ImageWorker.getStartedLoads() + ", coalesced = " + ImageWorker.getCoalescedLoads()
+					+ ", cancelled = " + ImageWorker.getCancelledLoads() + ", prefetch hits = " + ImageWorker.getPrefetchHits()
+					+ ", prefetch late = " + ImageWorker.getPrefetchLate());
+		}
 	}
 
 	public void onResume() {
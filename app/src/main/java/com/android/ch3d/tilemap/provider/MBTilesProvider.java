@@ -0,0 +1,179 @@
+package com.android.ch3d.tilemap.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.ch3d.tilemap.model.Tile;
+import com.android.ch3d.tilemap.model.TileFactory;
+import com.android.ch3d.tilemap.model.TileKey;
+
+import java.io.File;
+
+/**
+ * Serves tiles from a local MBTiles file, to be loaded with
+ * {@link com.android.ch3d.tilemap.util.mbtiles.MBTilesLoader}. The zoom range comes from the file's
+ * metadata and every zoom starts at the north-west corner of its bounds.
+ */
+public class MBTilesProvider implements TilesProvider {
+
+	public static final int PROVIDER_ID = 2;
+
+	private static final String TILE_URL_SCHEME = "mbtiles://";
+
+	private static final int DEFAULT_MAX_ZOOM = 18;
+
+	private final File mFile;
+
+	private final int mMinZoom;
+
+	private final int mMaxZoom;
+
+	private final int mDefaultZoom;
+
+	private final boolean mOpaqueTiles;
+
+	// tile at the north-west corner of the bounds on each zoom
+	private final int[] mOriginX;
+
+	private final int[] mOriginY;
+
+	// reused for every url, guarded by getTile() being synchronized
+	private final StringBuilder mUrlBuilder = new StringBuilder();
+
+	/**
+	 * Reads the metadata of the file, so this does disk access.
+	 */
+	public MBTilesProvider(final File file) {
+		mFile = file;
+		String minZoom = null;
+		String maxZoom = null;
+		String bounds = null;
+		String center = null;
+		String format = null;
+		final SQLiteDatabase database = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+		                                                            SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		try {
+			final Cursor cursor = database.rawQuery("SELECT name, value FROM metadata", null);
+			try {
+				while(cursor.moveToNext()) {
+					final String name = cursor.getString(0);
+					if("minzoom".equals(name)) {
+						minZoom = cursor.getString(1);
+					} else if("maxzoom".equals(name)) {
+						maxZoom = cursor.getString(1);
+					} else if("bounds".equals(name)) {
+						bounds = cursor.getString(1);
+					} else if("center".equals(name)) {
+						center = cursor.getString(1);
+					} else if("format".equals(name)) {
+						format = cursor.getString(1);
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			database.close();
+		}
+
+		// png tiles may be transparent, jpg tiles never are
+		mOpaqueTiles = "jpg".equals(format) || "jpeg".equals(format);
+		mMinZoom = parseInt(minZoom, 0);
+		mMaxZoom = Math.min(TileKey.MAX_ZOOM, parseInt(maxZoom, DEFAULT_MAX_ZOOM));
+		final String[] centerValues = center != null ? center.split(",") : null;
+		final int centerZoom = centerValues != null && centerValues.length == 3 ? parseInt(centerValues[2].trim(), mMinZoom) : mMinZoom;
+		mDefaultZoom = Math.max(mMinZoom, Math.min(mMaxZoom, centerZoom));
+		final String[] boundsValues = bounds != null ? bounds.split(",") : null;
+		double west = -180;
+		double north = 85.0511;
+		if(boundsValues != null && boundsValues.length == 4) {
+			west = Double.parseDouble(boundsValues[0].trim());
+			north = Double.parseDouble(boundsValues[3].trim());
+		}
+		final double latitude = Math.toRadians(north);
+		final double originX = (west + 180) / 360;
+		final double originY = (1 - Math.log(Math.tan(latitude) + 1 / Math.cos(latitude)) / Math.PI) / 2;
+		mOriginX = new int[mMaxZoom + 1];
+		mOriginY = new int[mMaxZoom + 1];
+		for(int zoom = 0; zoom <= mMaxZoom; zoom++) {
+			final int tiles = 1 << zoom;
+			mOriginX[zoom] = clamp((int) Math.floor(originX * tiles), tiles);
+			mOriginY[zoom] = clamp((int) Math.floor(originY * tiles), tiles);
+		}
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	@Override
+	public synchronized Tile getTile(final int zoom, final int x, final int y) {
+		final int tileX = getOriginX(zoom) + x;
+		final int tileY = getOriginY(zoom) + y;
+		// only identifies the tile, MBTilesLoader reads it by key
+		mUrlBuilder.setLength(0);
+		mUrlBuilder.append(TILE_URL_SCHEME).append(mFile.getName()).append('/').append(zoom).append('/').append(tileX)
+		           .append('/').append(tileY);
+		return TileFactory.create(x, y, getTileKey(zoom, x, y), mUrlBuilder.toString());
+	}
+
+	@Override
+	public long getTileKey(final int zoom, final int x, final int y) {
+		return TileKey.pack(PROVIDER_ID, zoom, getOriginX(zoom) + x, getOriginY(zoom) + y);
+	}
+
+	@Override
+	public int getOriginX(final int zoom) {
+		return mOriginX[zoom];
+	}
+
+	@Override
+	public int getOriginY(final int zoom) {
+		return mOriginY[zoom];
+	}
+
+	@Override
+	public int getMinZoom() {
+		return mMinZoom;
+	}
+
+	@Override
+	public int getMaxZoom() {
+		return mMaxZoom;
+	}
+
+	@Override
+	public int getDefaultZoom() {
+		return mDefaultZoom;
+	}
+
+	@Override
+	public String getTileHost() {
+		return null;
+	}
+
+	@Override
+	public String[] getTileHostShards() {
+		return null;
+	}
+
+	@Override
+	public boolean hasOpaqueTiles() {
+		return mOpaqueTiles;
+	}
+
+	private static int clamp(final int tile, final int tiles) {
+		return Math.max(0, Math.min(tiles - 1, tile));
+	}
+
+	private static int parseInt(final String value, final int defaultValue) {
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
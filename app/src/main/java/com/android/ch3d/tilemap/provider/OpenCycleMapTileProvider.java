@@ -2,21 +2,98 @@ package com.android.ch3d.tilemap.provider;
 
 import com.android.ch3d.tilemap.model.Tile;
 import com.android.ch3d.tilemap.model.TileFactory;
+import com.android.ch3d.tilemap.model.TileKey;
 
 /**
  * Created by Ch3D on 22.04.2015.
  */
 public class OpenCycleMapTileProvider implements TilesProvider {
 
-	public static final String TILE_IMG_URL = "http://b.tile.opencyclemap.org/cycle/15/%s/%s.png";
+	public static final String TILE_IMG_URL = "http://b.tile.opencyclemap.org/cycle/%s/%s/%s.png";
 
+	// host named in tile urls, and so in cache keys; downloads are spread over all of TILE_HOST_SHARDS
+	public static final String TILE_HOST = "b.tile.opencyclemap.org";
+
+	public static final String[] TILE_HOST_SHARDS = {"a.tile.opencyclemap.org", "b.tile.opencyclemap.org", "c.tile.opencyclemap.org"};
+
+	private static final String TILE_IMG_URL_PREFIX = "http://" + TILE_HOST + "/cycle/";
+
+	private static final String TILE_IMG_URL_SUFFIX = ".png";
+
+	// origin of the map at START_ZOOM, the origins of other zooms are derived from it
 	public static final int START_X_POS = 23946;
 
 	public static final int START_Y_POS = 10388;
 
+	public static final int START_ZOOM = 15;
+
+	public static final int MIN_ZOOM = 0;
+
+	public static final int MAX_ZOOM = 18;
+
+	public static final int PROVIDER_ID = 1;
+
+	// reused for every url, guarded by getTile() being synchronized
+	private final StringBuilder mUrlBuilder = new StringBuilder(TILE_IMG_URL_PREFIX.length() + 24);
+
+	@Override
+	public synchronized Tile getTile(final int zoom, final int x, final int y) {
+		final int tileX = getOriginX(zoom) + x;
+		final int tileY = getOriginY(zoom) + y;
+		mUrlBuilder.setLength(0);
+		mUrlBuilder.append(TILE_IMG_URL_PREFIX).append(zoom).append('/').append(tileX).append('/').append(tileY)
+		           .append(TILE_IMG_URL_SUFFIX);
+		final String imgUrl = mUrlBuilder.toString();
+		return TileFactory.create(x, y, getTileKey(zoom, x, y), imgUrl);
+	}
+
+	@Override
+	public long getTileKey(final int zoom, final int x, final int y) {
+		return TileKey.pack(PROVIDER_ID, zoom, getOriginX(zoom) + x, getOriginY(zoom) + y);
+	}
+
+	@Override
+	public int getOriginX(final int zoom) {
+		return scale(START_X_POS, zoom);
+	}
+
+	@Override
+	public int getOriginY(final int zoom) {
+		return scale(START_Y_POS, zoom);
+	}
+
+	@Override
+	public int getMinZoom() {
+		return MIN_ZOOM;
+	}
+
 	@Override
-	public Tile getTile(final int x, final int y) {
-		final String imgUrl = String.format(TILE_IMG_URL, START_X_POS + x, START_Y_POS + y);
-		return TileFactory.create(x, y, imgUrl);
+	public int getMaxZoom() {
+		return MAX_ZOOM;
+	}
+
+	@Override
+	public int getDefaultZoom() {
+		return START_ZOOM;
+	}
+
+	@Override
+	public String getTileHost() {
+		return TILE_HOST;
+	}
+
+	@Override
+	public String[] getTileHostShards() {
+		return TILE_HOST_SHARDS;
+	}
+
+	@Override
+	public boolean hasOpaqueTiles() {
+		// raster map tiles, every pixel is painted
+		return true;
+	}
+
+	private static int scale(final int position, final int zoom) {
+		return zoom >= START_ZOOM ? position << (zoom - START_ZOOM) : position >> (START_ZOOM - zoom);
 	}
-}
\ No newline at end of file
+}
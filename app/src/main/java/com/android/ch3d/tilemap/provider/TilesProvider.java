@@ -4,7 +4,49 @@ import com.android.ch3d.tilemap.model.Tile;
 
 /**
  * Created by Ch3D on 22.04.2015.
+ * <p/>
+ * Implementations must be safe to call from any thread.
  */
 public interface TilesProvider {
-	public Tile getTile(int x, int y);
+	/**
+	 * @param x Column relative to {@link #getOriginX(int)} at the given zoom
+	 * @param y Row relative to {@link #getOriginY(int)} at the given zoom
+	 */
+	public Tile getTile(int zoom, int x, int y);
+
+	/**
+	 * @return The packed {@link com.android.ch3d.tilemap.model.TileKey} of the tile, computed without allocating
+	 */
+	public long getTileKey(int zoom, int x, int y);
+
+	/**
+	 * @return Absolute column of the tile shown at relative column 0 on the given zoom
+	 */
+	public int getOriginX(int zoom);
+
+	/**
+	 * @return Absolute row of the tile shown at relative row 0 on the given zoom
+	 */
+	public int getOriginY(int zoom);
+
+	public int getMinZoom();
+
+	public int getMaxZoom();
+
+	public int getDefaultZoom();
+
+	/**
+	 * @return Host named in tile urls, or null if tiles are not fetched over HTTP
+	 */
+	public String getTileHost();
+
+	/**
+	 * @return Hosts serving the same tiles as {@link #getTileHost()}, downloads are spread over them
+	 */
+	public String[] getTileHostShards();
+
+	/**
+	 * @return true if no tile has transparent pixels, so tiles can be decoded without an alpha channel
+	 */
+	public boolean hasOpaqueTiles();
 }
@@ -0,0 +1,62 @@
+package com.android.ch3d.tilemap.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a buffer without copying them into an array first. Supports
+ * mark and reset, so a decoder can read the same bytes twice.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer mBuffer;
+
+	public ByteBufferInputStream(final ByteBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) {
+		if(length == 0) {
+			return 0;
+		}
+		if(!mBuffer.hasRemaining()) {
+			return -1;
+		}
+		final int count = Math.min(length, mBuffer.remaining());
+		mBuffer.get(buffer, offset, count);
+		return count;
+	}
+
+	@Override
+	public long skip(final long count) {
+		final int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+		mBuffer.position(mBuffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(final int readLimit) {
+		mBuffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.reset();
+	}
+}
@@ -337,7 +337,7 @@ public final class DiskLruCache implements Closeable {
 		return readFully(new InputStreamReader(in, UTF_8));
 	}
 
-	static final String JOURNAL_FILE = "journal";
+	public static final String JOURNAL_FILE = "journal";
 
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
 
@@ -514,6 +514,48 @@ public final class DiskLruCache implements Closeable {
 		return editor;
 	}
 
+	/**
+	 * Opens editors for several entries at once, flushing the journal once for all of them.
+	 *
+	 * @return The editors in key order, null for entries that are already being edited. If this
+	 * throws, none of the entries is left being edited.
+	 */
+	public synchronized Editor[] edit(String[] keys) throws IOException {
+		checkNotClosed();
+		Editor[] editors = new Editor[keys.length];
+		boolean opened = false;
+		try {
+			for(int i = 0; i < keys.length; i++) {
+				validateKey(keys[i]);
+				Entry entry = lruEntries.get(keys[i]);
+				if(entry == null) {
+					entry = new Entry(keys[i]);
+					lruEntries.put(keys[i], entry);
+				} else if(entry.currentEditor != null) {
+					continue;
+				}
+				editors[i] = new Editor(entry);
+				entry.currentEditor = editors[i];
+				journalWriter.write(DIRTY + ' ' + keys[i] + '\n');
+			}
+			journalWriter.flush();
+			opened = true;
+		} finally {
+			if(!opened) {
+				for(Editor editor : editors) {
+					if(editor != null) {
+						try {
+							editor.abort();
+						} catch(IOException ignored) {
+							// the entry is released before the journal is written
+						}
+					}
+				}
+			}
+		}
+		return editors;
+	}
+
 	public synchronized void flush() throws IOException {
 		checkNotClosed();
 		trimToSize();
@@ -6,6 +6,7 @@ import android.graphics.BitmapFactory;
 import com.android.ch3d.tilemap.util.cache.ImageCache;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 /**
  * Created by Ch3D on 30.04.2015.
@@ -21,9 +22,97 @@ public class ImageUtils {
 		return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
 	}
 
+	/**
+	 * Decodes the remaining bytes of the buffer, reading them in place.
+	 */
+	public static Bitmap decodeSampledBitmapFromBuffer(ByteBuffer buffer, int width, int height, ImageCache cache) {
+		final ByteBufferInputStream inputStream = new ByteBufferInputStream(buffer);
+		inputStream.mark(buffer.remaining());
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(inputStream, null, options);
+		inputStream.reset();
+		options.inSampleSize = calculateInSampleSize(options, width, height);
+		options.inJustDecodeBounds = false;
+		addInBitmapOptions(options, cache);
+		return BitmapFactory.decodeStream(inputStream, null, options);
+	}
+
+	/**
+	 * Decodes the first length bytes of the array in a single pass. The size of PNG and JPEG tiles
+	 * is read straight from the header bytes, so the pooled bitmap fits without a bounds pass;
+	 * other formats get the bounds pass.
+	 */
+	public static Bitmap decodeTileFromBytes(byte[] data, int length, int width, int height, ImageCache cache) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		if(!readImageSize(data, length, options)) {
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeByteArray(data, 0, length, options);
+			if(options.outWidth <= 0 || options.outHeight <= 0) {
+				// not an image
+				return null;
+			}
+		}
+		options.inSampleSize = calculateInSampleSize(options, width, height);
+		options.inJustDecodeBounds = false;
+		addInBitmapOptions(options, cache);
+		return BitmapFactory.decodeByteArray(data, 0, length, options);
+	}
+
+	/**
+	 * Sets outWidth and outHeight from the IHDR chunk of a PNG or the SOF segment of a JPEG.
+	 *
+	 * @return false if the bytes are neither, or the size could not be found
+	 */
+	static boolean readImageSize(byte[] data, int length, BitmapFactory.Options options) {
+		if(length >= 24 && (data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+				&& data[12] == 'I' && data[13] == 'H' && data[14] == 'D' && data[15] == 'R') {
+			options.outWidth = readInt(data, 16);
+			options.outHeight = readInt(data, 20);
+			return options.outWidth > 0 && options.outHeight > 0;
+		}
+		if(length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+			return false;
+		}
+		int offset = 2;
+		while(offset + 9 <= length) {
+			if((data[offset] & 0xff) != 0xff) {
+				return false;
+			}
+			final int marker = data[offset + 1] & 0xff;
+			if(marker == 0xff) {
+				// fill byte
+				offset++;
+				continue;
+			}
+			if(marker == 0xda || marker == 0xd9) {
+				// start of scan or end of image before any frame header
+				return false;
+			}
+			// SOF0..SOF15, except DHT, JPG and DAC which share the range
+			if(marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+				options.outHeight = readShort(data, offset + 5);
+				options.outWidth = readShort(data, offset + 7);
+				return options.outWidth > 0 && options.outHeight > 0;
+			}
+			offset += 2 + readShort(data, offset + 2);
+		}
+		return false;
+	}
+
+	private static int readShort(byte[] data, int offset) {
+		return (data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff);
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return readShort(data, offset) << 16 | readShort(data, offset + 2);
+	}
+
 	private static void addInBitmapOptions(BitmapFactory.Options options, ImageCache cache) {
 		options.inMutable = true;
 		if(cache != null) {
+			// set before taking a bitmap from the pool, which has to match the config
+			options.inPreferredConfig = cache.getParams().decodeConfig;
 			Bitmap inBitmap = cache.getBitmapFromReusableSet(options);
 			if(inBitmap != null) {
 				options.inBitmap = inBitmap;
@@ -1,22 +1,21 @@
 package com.android.ch3d.tilemap.util;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.graphics.drawable.TransitionDrawable;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 import android.util.Log;
-import android.widget.ImageView;
 
-import com.android.ch3d.tilemap.BuildConfig;
+import com.android.ch3d.tilemap.model.TileKey;
 import com.android.ch3d.tilemap.util.cache.ImageCache;
+import com.android.ch3d.tilemap.util.cache.TileDrawable;
 
-import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Ch3D on 23.04.2015.
@@ -25,8 +24,34 @@ public abstract class ImageWorker {
 
     private static final String TAG = ImageWorker.class.getSimpleName();
 
+    private static final AtomicInteger sStartedLoads = new AtomicInteger();
+
+    private static final AtomicInteger sCoalescedLoads = new AtomicInteger();
+
+    private static final AtomicInteger sCancelledLoads = new AtomicInteger();
+
+    private static final int MAX_TRACKED_PREFETCHES = 256;
+
+    private static final AtomicInteger sPrefetchHits = new AtomicInteger();
+
+    private static final AtomicInteger sPrefetchLate = new AtomicInteger();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Loads of this worker that are queued or running, keyed by packed tile key. Per worker, so a
+    // load never reports to the listener of another worker, e.g. the one of the activity before a
+    // rotation. Only touched on the main thread.
+    private final LongSparseArray<BitmapWorkerTask> mInFlightTasks = new LongSparseArray<BitmapWorkerTask>();
+
+    // Prefetched tiles that have not been drawn yet. Only touched on the main thread.
+    private final LongSparseArray<Boolean> mPrefetchedKeys = new LongSparseArray<Boolean>();
+
     private ImageCache mImageCache;
 
+    private TileScheduler mTileScheduler;
+
+    private OnTileLoadedListener mOnTileLoadedListener;
+
     private boolean mPaused = false;
 
     protected boolean mPauseWork = false;
@@ -43,83 +68,289 @@ public abstract class ImageWorker {
         mImageCache = cache;
     }
 
-    public boolean cancelPotentialWork(Object data, Holder holder) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(holder);
-        if (bitmapWorkerTask != null) {
-            final String bitmapData = bitmapWorkerTask.mUrl;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
-            } else {
-                return false;
-            }
-        }
-        return true;
+    /**
+     * Runs loads on the given scheduler instead of the shared AsyncTask pool.
+     */
+    public void setTileScheduler(TileScheduler tileScheduler) {
+        mTileScheduler = tileScheduler;
     }
 
-    private BitmapWorkerTask getBitmapWorkerTask(Holder holder) {
-        if (holder != null) {
-            final Drawable drawable = holder.getDrawable();
-            if (drawable instanceof AsyncDrawable) {
-                final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
-            }
-        }
-        return null;
+    /**
+     * Sets the listener told on the main thread whenever a tile has been loaded into the memory
+     * cache, so the view can redraw that tile.
+     */
+    public void setOnTileLoadedListener(OnTileLoadedListener listener) {
+        mOnTileLoadedListener = listener;
     }
 
     protected ImageCache getImageCache() {
         return mImageCache;
     }
 
-    public void loadImage(final String url, final Holder holder) {
+    /**
+     * Returns the tile, with a reference taken, if it is in the memory cache. Otherwise starts its
+     * load, or joins the load already in flight, and returns null. Must be called on the main
+     * thread.
+     */
+    public TileDrawable acquireTile(final long key, final String url, final int x, final int y) {
         if (url == null) {
-            return;
+            return null;
         }
 
-        BitmapDrawable value = null;
-        if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(url);
+        final TileDrawable tile = acquireVisibleTile(key);
+        if (tile == null && !joinPendingLoad(key)) {
+            start(new BitmapWorkerTask(key, url, x, y, false));
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the tile if it is in the memory cache, with a reference taken so its bitmap is not
+     * reused while it is drawn. The caller must {@link TileDrawable#release()} it once the draw is
+     * done. Allocates nothing.
+     *
+     * @return The tile, or null if it is not in memory
+     */
+    public TileDrawable acquireCachedTile(final long key) {
+        final BitmapDrawable value = mImageCache != null ? mImageCache.getBitmapFromMemCache(key) : null;
+        if (value instanceof TileDrawable) {
+            final TileDrawable tile = (TileDrawable) value;
+            // an eviction may have released the tile since the lookup
+            return tile.acquire() ? tile : null;
         }
+        return null;
+    }
 
-        if (value != null) {
-            holder.getCanvas().drawBitmap(value.getBitmap(), holder.getX() * 256, holder.getY() * 256, null);
-        } else if (cancelPotentialWork(url, holder)) {
-            final BitmapWorkerTask task = new BitmapWorkerTask(holder);
-            final AsyncDrawable asyncDrawable = new AsyncDrawable(mContext.getResources(), null, task);
-            holder.setDrawable(asyncDrawable);
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, url);
+    /**
+     * Attaches to the load of the tile if one is already in flight. Allocates nothing, so callers
+     * only need to build the tile url when this returns false. Must be called on the main thread.
+     *
+     * @return true if the tile is already loading
+     */
+    public boolean joinPendingLoad(final long key) {
+        final BitmapWorkerTask pendingTask = mInFlightTasks.get(key);
+        if (pendingTask != null && !pendingTask.isCancelled()) {
+            join(pendingTask);
+            return true;
         }
+        return false;
     }
 
-//    public void loadImage(final String url, final ImageView imageView) {
-//        if (url == null) {
-//            return;
-//        }
-//
-//        BitmapDrawable value = null;
-//        if (mImageCache != null) {
-//            value = mImageCache.getBitmapFromMemCache(url);
-//        }
-//
-//        if (value != null) {
-//            imageView.setImageDrawable(value);
-//        } else if (cancelPotentialWork(url, imageView)) {
-//            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
-//            final AsyncDrawable asyncDrawable = new AsyncDrawable(mContext.getResources(), null, task);
-//            imageView.setImageDrawable(asyncDrawable);
-//            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, url);
-//        }
-//    }
+    /**
+     * Like {@link #acquireCachedTile}, for a visible tile of the current zoom. Placeholder lookups
+     * use acquireCachedTile, so only the first draw of a prefetched tile counts as a prefetch hit.
+     */
+    public TileDrawable acquireVisibleTile(final long key) {
+        final TileDrawable tile = acquireCachedTile(key);
+        if (tile != null && mPrefetchedKeys.size() > 0) {
+            final int index = mPrefetchedKeys.indexOfKey(key);
+            if (index >= 0) {
+                mPrefetchedKeys.removeAt(index);
+                sPrefetchHits.incrementAndGet();
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Must be called on the main thread.
+     *
+     * @return true if a load of the tile is in flight; its end is reported to the
+     * {@link OnTileLoadedListener} if it succeeds
+     */
+    public boolean isLoading(final long key) {
+        final BitmapWorkerTask pendingTask = mInFlightTasks.get(key);
+        return pendingTask != null && !pendingTask.isCancelled();
+    }
+
+    private void join(BitmapWorkerTask pendingTask) {
+        if (pendingTask.mPrefetch) {
+            // the tile became visible before its prefetch finished, it is a regular load now
+            pendingTask.mPrefetch = false;
+            sPrefetchLate.incrementAndGet();
+        }
+        sCoalescedLoads.incrementAndGet();
+    }
+
+    /**
+     * Warms the memory and disk caches with a tile that is expected to become visible. Prefetches
+     * run behind every regular load and are not cancelled by {@link #cancelLoadsOutside}.
+     *
+     * @return true if a new load was started
+     */
+    public boolean prefetchImage(final long key, final String url, final int x, final int y) {
+        if (url == null || mInFlightTasks.indexOfKey(key) >= 0) {
+            return false;
+        }
+        if (mImageCache != null && mImageCache.getBitmapFromMemCache(key) != null) {
+            return false;
+        }
+        start(new BitmapWorkerTask(key, url, x, y, true));
+        return true;
+    }
+
+    private void start(BitmapWorkerTask task) {
+        mInFlightTasks.put(task.mKey, task);
+        sStartedLoads.incrementAndGet();
+        final Executor executor = mTileScheduler != null ?
+                mTileScheduler.executorFor(task.mX, task.mY, task.mPrefetch) : AsyncTask.THREAD_POOL_EXECUTOR;
+        task.executeOnExecutor(executor, task.mUrl);
+    }
+
+    /**
+     * Cancels queued and running loads of tiles outside the given range (inclusive). Must be called
+     * on the main thread.
+     */
+    public void cancelLoadsOutside(int left, int top, int right, int bottom) {
+        cancelOutside(left, top, right, bottom, false);
+    }
+
+    /**
+     * Cancels prefetches of tiles outside the given range (inclusive). Must be called on the main
+     * thread.
+     */
+    public void cancelPrefetchesOutside(int left, int top, int right, int bottom) {
+        cancelOutside(left, top, right, bottom, true);
+    }
+
+    /**
+     * Cancels every load, prefetches included, of tiles that are not on the given zoom. Must be
+     * called on the main thread.
+     */
+    public void cancelLoadsNotAtZoom(int zoom) {
+        for (int i = mInFlightTasks.size() - 1; i >= 0; i--) {
+            if (TileKey.zoom(mInFlightTasks.keyAt(i)) != zoom) {
+                final BitmapWorkerTask task = mInFlightTasks.valueAt(i);
+                mInFlightTasks.removeAt(i);
+                task.cancel(true);
+                sCancelledLoads.incrementAndGet();
+            }
+        }
+        if (mTileScheduler != null) {
+            mTileScheduler.purge();
+        }
+    }
+
+    /**
+     * Cancels every load of this worker, prefetches included, e.g. before the activity goes away.
+     * Must be called on the main thread.
+     */
+    public void cancelAllLoads() {
+        for (int i = mInFlightTasks.size() - 1; i >= 0; i--) {
+            mInFlightTasks.valueAt(i).cancel(true);
+            sCancelledLoads.incrementAndGet();
+        }
+        mInFlightTasks.clear();
+        if (mTileScheduler != null) {
+            mTileScheduler.purge();
+        }
+    }
+
+    private void cancelOutside(int left, int top, int right, int bottom, boolean prefetch) {
+        for (int i = mInFlightTasks.size() - 1; i >= 0; i--) {
+            final BitmapWorkerTask task = mInFlightTasks.valueAt(i);
+            if (task.mPrefetch != prefetch) {
+                continue;
+            }
+            if (task.mX < left || task.mX > right || task.mY < top || task.mY > bottom) {
+                mInFlightTasks.removeAt(i);
+                task.cancel(true);
+                sCancelledLoads.incrementAndGet();
+            }
+        }
+        if (mTileScheduler != null) {
+            mTileScheduler.purge();
+        }
+    }
+
+    /**
+     * @return Number of loads that started a new task
+     */
+    public static int getStartedLoads() {
+        return sStartedLoads.get();
+    }
+
+    /**
+     * @return Number of loads that attached to a task already in flight for the same tile
+     */
+    public static int getCoalescedLoads() {
+        return sCoalescedLoads.get();
+    }
+
+    /**
+     * @return Number of loads cancelled because their tile left the viewport or the zoom changed
+     */
+    public static int getCancelledLoads() {
+        return sCancelledLoads.get();
+    }
+
+    /**
+     * @return Number of tiles that were already in memory, thanks to a prefetch, when first drawn
+     */
+    public static int getPrefetchHits() {
+        return sPrefetchHits.get();
+    }
+
+    /**
+     * @return Number of tiles that became visible while their prefetch was still loading
+     */
+    public static int getPrefetchLate() {
+        return sPrefetchLate.get();
+    }
 
     protected abstract Bitmap processBitmap(final String url);
 
-    private void setImageDrawable(ImageView imageView, Drawable drawable) {
-        final TransitionDrawable td = new TransitionDrawable(new Drawable[]{
-                new ColorDrawable(android.R.color.transparent),
-                drawable
+    /**
+     * Loads a tile that was in neither cache. Loaders that address tiles by key rather than by url
+     * override this one.
+     */
+    protected Bitmap processBitmap(final long key, final String url) {
+        return processBitmap(url);
+    }
+
+    /**
+     * @param prefetch Whether the tile is loaded ahead of need, so that work for it may be dropped
+     *                 first under load
+     */
+    protected Bitmap processBitmap(final long key, final String url, final boolean prefetch) {
+        return processBitmap(key, url);
+    }
+
+    /**
+     * @return false if tiles come from local storage, in which case they are neither read from nor
+     * written to the disk cache
+     */
+    protected boolean usesDiskCache() {
+        return true;
+    }
+
+    /**
+     * Called on a worker thread after a tile was served from the disk cache, e.g. to revalidate
+     * it if it is stale.
+     */
+    protected void onDiskCacheHit(final long key, final String url, final int x, final int y) {
+    }
+
+    /**
+     * Replaces the tile in the memory cache with a newer bitmap and tells the listener, from any
+     * thread.
+     */
+    protected void publishRefreshedTile(final long key, final int x, final int y, final Bitmap bitmap) {
+        if (mImageCache != null) {
+            mImageCache.addBitmapToMemCache(key, newTileDrawable(bitmap));
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOnTileLoadedListener != null && !mPaused) {
+                    mOnTileLoadedListener.onTileLoaded(x, y);
+                }
+            }
         });
-        imageView.setImageDrawable(td);
-        td.startTransition(mContext.getResources().getInteger(android.R.integer.config_shortAnimTime));
+    }
+
+    private TileDrawable newTileDrawable(final Bitmap bitmap) {
+        return new TileDrawable(mContext.getResources(), bitmap, mImageCache != null ? mImageCache.getBitmapPool() : null);
     }
 
     public void setPauseWork(boolean pauseWork) {
@@ -136,56 +367,35 @@ public abstract class ImageWorker {
         setPauseWork(false);
     }
 
-    public static class Holder {
-        private Drawable drawable;
-        private Canvas canvas;
-        private int x;
-
-        public int getX() {
-            return x;
-        }
+    public interface OnTileLoadedListener {
+        void onTileLoaded(int x, int y);
+    }
 
-        public int getY() {
-            return y;
-        }
+    private class BitmapWorkerTask extends AsyncTask<String, Void, BitmapDrawable> {
+        private final long mKey;
 
-        private int y;
+        private final String mUrl;
 
-        public Holder(Canvas canvas, int x, int y) {
-            this.canvas = canvas;
-            this.x = x;
-            this.y = y;
-        }
+        private final int mX;
 
-        public Drawable getDrawable() {
-            return drawable;
-        }
+        private final int mY;
 
-        public void setDrawable(Drawable drawable) {
-            this.drawable = drawable;
-        }
+        private boolean mPrefetch;
 
-        public Canvas getCanvas() {
-            return canvas;
-        }
-    }
-
-    private class BitmapWorkerTask extends AsyncTask<String, Void, BitmapDrawable> {
-        private final WeakReference<Holder> imageViewReference;
-
-        private String mUrl;
-
-        public BitmapWorkerTask(Holder holder) {
-            imageViewReference = new WeakReference<Holder>(holder);
+        public BitmapWorkerTask(long key, String url, int x, int y, boolean prefetch) {
+            mKey = key;
+            mUrl = url;
+            mX = x;
+            mY = y;
+            mPrefetch = prefetch;
         }
 
         @Override
         protected BitmapDrawable doInBackground(String... params) {
-            if (params.length == 0 || TextUtils.isEmpty(params[0])) {
+            if (TextUtils.isEmpty(mUrl)) {
                 return null;
             }
 
-            mUrl = String.valueOf(params[0]);
             Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
@@ -198,36 +408,40 @@ public abstract class ImageWorker {
                 }
             }
 
-            if (mImageCache != null && !isCancelled() && getAttachedHolder() != null && !mPaused) {
-                bitmap = mImageCache.getBitmapFromDiskCache(mUrl);
+            // whether the tile is still wanted is decided by cancelLoadsOutside()
+            final boolean diskCache = usesDiskCache();
+            if (diskCache && mImageCache != null && !isCancelled() && !mPaused) {
+                bitmap = mImageCache.getBitmapFromDiskCache(mKey, mUrl);
+                if (bitmap != null) {
+                    onDiskCacheHit(mKey, mUrl, mX, mY);
+                }
             }
 
-            if (bitmap == null && !isCancelled() && getAttachedHolder() != null && !mPaused) {
-                bitmap = processBitmap(mUrl);
+            if (bitmap == null && !isCancelled() && !mPaused) {
+                bitmap = processBitmap(mKey, mUrl, mPrefetch);
             }
 
             if (bitmap != null) {
-                drawable = new BitmapDrawable(mContext.getResources(), bitmap);
+                drawable = newTileDrawable(bitmap);
                 if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(mUrl, drawable);
+                    // the tile is already on disk as downloaded, or it came from local storage
+                    mImageCache.addBitmapToMemCache(mKey, drawable);
                 }
             }
             return drawable;
         }
 
-        private Holder getAttachedHolder() {
-            final Holder holder = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(holder);
-
-            if (this == bitmapWorkerTask) {
-                return holder;
+        private void finish() {
+            final int index = mInFlightTasks.indexOfKey(mKey);
+            if (index >= 0 && mInFlightTasks.valueAt(index) == this) {
+                mInFlightTasks.removeAt(index);
             }
-            return null;
         }
 
         @Override
         protected void onCancelled(final BitmapDrawable value) {
             super.onCancelled(value);
+            finish();
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
@@ -235,31 +449,23 @@ public abstract class ImageWorker {
 
         @Override
         protected void onPostExecute(BitmapDrawable value) {
+            finish();
             if (isCancelled() || mPaused) {
                 value = null;
             }
-
-            final Holder holder = getAttachedHolder();
-            if (value != null && holder != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
+            if (value == null) {
+                return;
+            }
+            if (mPrefetch) {
+                if (mPrefetchedKeys.size() >= MAX_TRACKED_PREFETCHES) {
+                    mPrefetchedKeys.clear();
                 }
-                holder.setDrawable(value);
-                holder.getCanvas().drawBitmap(value.getBitmap(), holder.getX() * 256, holder.getY() * 256, null);
+                mPrefetchedKeys.put(mKey, Boolean.TRUE);
             }
-        }
-    }
-
-    private static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<BitmapWorkerTask> bitmapWorkerTaskReference;
 
-        public AsyncDrawable(Resources res, Bitmap bitmap, BitmapWorkerTask bitmapWorkerTask) {
-            super(res, bitmap);
-            bitmapWorkerTaskReference = new WeakReference<BitmapWorkerTask>(bitmapWorkerTask);
-        }
-
-        public BitmapWorkerTask getBitmapWorkerTask() {
-            return bitmapWorkerTaskReference.get();
+            if (mOnTileLoadedListener != null) {
+                mOnTileLoadedListener.onTileLoaded(mX, mY);
+            }
         }
     }
 }
@@ -0,0 +1,80 @@
+package com.android.ch3d.tilemap.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks selected by key hash. Work on different keys proceeds in parallel unless the
+ * keys collide on a stripe; work on the same key is serialized. Acquisitions that had to wait are
+ * counted so contention can be observed.
+ */
+public class StripedLock {
+
+	private final ReentrantLock[] mLocks;
+
+	private final int mMask;
+
+	private final AtomicLong mAcquisitions = new AtomicLong();
+
+	private final AtomicLong mContended = new AtomicLong();
+
+	private final AtomicLong mWaitNanos = new AtomicLong();
+
+	/**
+	 * @param stripes Number of locks, rounded up to a power of two
+	 */
+	public StripedLock(final int stripes) {
+		int size = 1;
+		while(size < stripes) {
+			size <<= 1;
+		}
+		mLocks = new ReentrantLock[size];
+		for(int i = 0; i < size; i++) {
+			mLocks[i] = new ReentrantLock();
+		}
+		mMask = size - 1;
+	}
+
+	/**
+	 * Acquires the lock guarding the key. The caller must unlock the returned lock.
+	 */
+	public Lock lock(final Object key) {
+		final ReentrantLock lock = mLocks[indexFor(key)];
+		if(!lock.tryLock()) {
+			mContended.incrementAndGet();
+			final long start = System.nanoTime();
+			lock.lock();
+			mWaitNanos.addAndGet(System.nanoTime() - start);
+		}
+		mAcquisitions.incrementAndGet();
+		return lock;
+	}
+
+	private int indexFor(final Object key) {
+		int h = key.hashCode();
+		// same supplemental hash as HashMap, so keys that differ only in high bits still spread
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & mMask;
+	}
+
+	public long getAcquisitions() {
+		return mAcquisitions.get();
+	}
+
+	public long getContended() {
+		return mContended.get();
+	}
+
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		return "StripedLock{stripes=" + mLocks.length + ", acquisitions=" + getAcquisitions() + ", contended=" + getContended()
+				+ ", waited=" + getWaitMillis() + "ms}";
+	}
+}
@@ -0,0 +1,179 @@
+package com.android.ch3d.tilemap.util;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dedicated pool for tile loads. Queued loads run visible tiles first and then by distance from
+ * the viewport center; the queue is re-ordered whenever the viewport moves.
+ */
+public class TileScheduler {
+
+	private static final String TAG = TileScheduler.class.getSimpleName();
+
+	private static final int KEEP_ALIVE_SECONDS = 30;
+
+	// added to the priority of tiles outside the viewport so every visible tile sorts first
+	private static final int OFFSCREEN_PENALTY = 1 << 24;
+
+	// prefetches of off-screen tiles sort after every other load
+	private static final int PREFETCH_PENALTY = 1 << 25;
+
+	private static final int MAX_DISTANCE = (1 << 24) - 1;
+
+	private final ThreadPoolExecutor mExecutor;
+
+	private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<Runnable>();
+
+	private final AtomicLong mSequence = new AtomicLong();
+
+	private volatile int mLeft;
+
+	private volatile int mTop;
+
+	private volatile int mRight;
+
+	private volatile int mBottom;
+
+	public TileScheduler(final int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, mQueue, new TileThreadFactory());
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param prefetch Whether the tile is loaded ahead of need and should yield to all other loads
+	 *                 while it is off screen
+	 * @return An executor that queues work for the tile at the given index
+	 */
+	public Executor executorFor(final int x, final int y, final boolean prefetch) {
+		return new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				mExecutor.execute(new TileTask(command, x, y, prefetch, mSequence.getAndIncrement()));
+			}
+		};
+	}
+
+	/**
+	 * Sets the visible tile range (inclusive) and re-orders the queued loads against it.
+	 */
+	public void updateViewport(final int left, final int top, final int right, final int bottom) {
+		mLeft = left;
+		mTop = top;
+		mRight = right;
+		mBottom = bottom;
+
+		final List<Runnable> queued = new ArrayList<Runnable>(mQueue.size());
+		mQueue.drainTo(queued);
+		for(Runnable runnable : queued) {
+			((TileTask) runnable).updatePriority();
+		}
+		mQueue.addAll(queued);
+	}
+
+	/**
+	 * Drops queued loads whose work has been cancelled, so they stop holding queue slots.
+	 */
+	public void purge() {
+		final Iterator<Runnable> iterator = mQueue.iterator();
+		while(iterator.hasNext()) {
+			final Runnable runnable = ((TileTask) iterator.next()).mRunnable;
+			if(runnable instanceof Future && ((Future<?>) runnable).isCancelled()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops the queued loads and stops the threads; nothing can be queued afterwards.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+
+	private int priorityOf(final int x, final int y, final boolean prefetch) {
+		final int left = mLeft;
+		final int top = mTop;
+		final int right = mRight;
+		final int bottom = mBottom;
+
+		// distances are doubled so the center of an even-sized range stays integral
+		final long dx = 2L * x - (left + right);
+		final long dy = 2L * y - (top + bottom);
+		final int distance = (int) Math.min(dx * dx + dy * dy, MAX_DISTANCE);
+		final boolean visible = x >= left && x <= right && y >= top && y <= bottom;
+		if(visible) {
+			return distance;
+		}
+		return (prefetch ? PREFETCH_PENALTY : OFFSCREEN_PENALTY) + distance;
+	}
+
+	private final class TileTask implements Runnable, Comparable<TileTask> {
+		private final Runnable mRunnable;
+
+		private final int mX;
+
+		private final int mY;
+
+		private final boolean mPrefetch;
+
+		private final long mSequence;
+
+		private int mPriority;
+
+		TileTask(final Runnable runnable, final int x, final int y, final boolean prefetch, final long sequence) {
+			mRunnable = runnable;
+			mX = x;
+			mY = y;
+			mPrefetch = prefetch;
+			mSequence = sequence;
+			updatePriority();
+		}
+
+		void updatePriority() {
+			mPriority = priorityOf(mX, mY, mPrefetch);
+		}
+
+		@Override
+		public void run() {
+			mRunnable.run();
+		}
+
+		@Override
+		public int compareTo(final TileTask another) {
+			if(mPriority != another.mPriority) {
+				return mPriority < another.mPriority ? -1 : 1;
+			}
+			return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+		}
+	}
+
+	private static final class TileThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, TAG + " #" + mCount.incrementAndGet());
+		}
+	}
+}
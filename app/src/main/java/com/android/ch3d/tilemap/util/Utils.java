@@ -16,6 +16,8 @@
 
 package com.android.ch3d.tilemap.util;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Build;
@@ -41,6 +43,15 @@ public final class Utils {
 		return Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT;
 	}
 
+	@TargetApi(VERSION_CODES.KITKAT)
+	public static boolean isLowRamDevice(Context context) {
+		if(hasKitKat()) {
+			final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+			return activityManager.isLowRamDevice();
+		}
+		return false;
+	}
+
 	public static void close(Closeable closeable) {
 		if(closeable != null) {
 			try {
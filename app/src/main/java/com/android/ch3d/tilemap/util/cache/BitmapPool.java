@@ -0,0 +1,197 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.v4.util.LongSparseArray;
+
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded pool of bitmaps to decode into with inBitmap. Bitmaps are bucketed by allocation
+ * size and config, so taking one for a decode is a single lookup; the pool keeps one LRU order
+ * over all buckets and drops the least recently released bitmaps once over budget.
+ */
+public class BitmapPool {
+
+	private final LongSparseArray<Node> mBuckets = new LongSparseArray<Node>();
+
+	private final AtomicLong mHits = new AtomicLong();
+
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private final AtomicLong mEvictions = new AtomicLong();
+
+	private long mMaxBytes;
+
+	private long mBytes;
+
+	// LRU list over all pooled bitmaps, from mEldest to mNewest
+	private Node mEldest;
+
+	private Node mNewest;
+
+	/**
+	 * @param maxBytes Budget for the sum of pooled allocation sizes
+	 */
+	public BitmapPool(final long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Takes a bitmap that a decode with the given options can reuse.
+	 *
+	 * @param options Options with out* fields and inSampleSize set for the decode
+	 * @return The bitmap, now owned by the caller, or null if none fits
+	 */
+	public synchronized Bitmap get(final BitmapFactory.Options options) {
+		final int width = options.outWidth / Math.max(1, options.inSampleSize);
+		final int height = options.outHeight / Math.max(1, options.inSampleSize);
+		final Bitmap.Config config = ImageCacheBase.getDecodeConfig(options);
+		final long bucket = bucketOf(width * height * ImageCacheBase.getBytesPerPixel(config), config);
+		final Node head = mBuckets.get(bucket);
+		if(head == null || !ImageCacheBase.canUseForInBitmap(head.mBitmap, options)) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		remove(head);
+		mHits.incrementAndGet();
+		return head.mBitmap;
+	}
+
+	/**
+	 * Offers a bitmap that nothing draws or references any more.
+	 */
+	public synchronized void put(final Bitmap bitmap) {
+		if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		final int size = getAllocationSize(bitmap);
+		if(size > mMaxBytes) {
+			return;
+		}
+		final Node node = new Node(bitmap, bucketOf(size, bitmap.getConfig()), size);
+		final Node head = mBuckets.get(node.mBucket);
+		node.mBucketNext = head;
+		if(head != null) {
+			head.mBucketPrev = node;
+		}
+		mBuckets.put(node.mBucket, node);
+
+		node.mLruPrev = mNewest;
+		if(mNewest != null) {
+			mNewest.mLruNext = node;
+		} else {
+			mEldest = node;
+		}
+		mNewest = node;
+		mBytes += size;
+		trimToSize(mMaxBytes);
+	}
+
+	/**
+	 * Drops the least recently released bitmaps until the pool holds at most the given number of
+	 * bytes.
+	 */
+	public synchronized void trimToSize(final long maxBytes) {
+		while(mBytes > maxBytes && mEldest != null) {
+			remove(mEldest);
+			mEvictions.incrementAndGet();
+		}
+	}
+
+	public synchronized void setMaxSize(final long maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	public synchronized long size() {
+		return mBytes;
+	}
+
+	public synchronized long maxSize() {
+		return mMaxBytes;
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public long getEvictions() {
+		return mEvictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BitmapPool{" + size() + "/" + maxSize() + " bytes, hits " + mHits.get() + ", misses " + mMisses.get()
+				+ ", evictions " + mEvictions.get() + "}";
+	}
+
+	private void remove(final Node node) {
+		if(node.mBucketPrev != null) {
+			node.mBucketPrev.mBucketNext = node.mBucketNext;
+		} else if(node.mBucketNext != null) {
+			mBuckets.put(node.mBucket, node.mBucketNext);
+		} else {
+			mBuckets.remove(node.mBucket);
+		}
+		if(node.mBucketNext != null) {
+			node.mBucketNext.mBucketPrev = node.mBucketPrev;
+		}
+
+		if(node.mLruPrev != null) {
+			node.mLruPrev.mLruNext = node.mLruNext;
+		} else {
+			mEldest = node.mLruNext;
+		}
+		if(node.mLruNext != null) {
+			node.mLruNext.mLruPrev = node.mLruPrev;
+		} else {
+			mNewest = node.mLruPrev;
+		}
+		mBytes -= node.mSize;
+	}
+
+	private static long bucketOf(final int bytes, final Bitmap.Config config) {
+		return ((long) bytes << 8) | (config != null ? config.ordinal() + 1 : 0);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int getAllocationSize(final Bitmap bitmap) {
+		return Utils.hasKitKat() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+	}
+
+	private static final class Node {
+		final Bitmap mBitmap;
+
+		final long mBucket;
+
+		final int mSize;
+
+		// bucket list, most recently released first
+		Node mBucketPrev;
+
+		Node mBucketNext;
+
+		Node mLruPrev;
+
+		Node mLruNext;
+
+		Node(final Bitmap bitmap, final long bucket, final int size) {
+			mBitmap = bitmap;
+			mBucket = bucket;
+			mSize = size;
+		}
+	}
+}
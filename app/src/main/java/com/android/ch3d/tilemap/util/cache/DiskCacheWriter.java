@@ -0,0 +1,236 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.android.ch3d.tilemap.BuildConfig;
+import com.android.ch3d.tilemap.util.DiskLruCache;
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind stage of the disk cache. Loads hand over the encoded bytes of a tile and return at
+ * once; a single background thread writes them in batches, opening the editors of a batch with
+ * one journal flush and flushing the journal again once the batch is committed. The queue is
+ * bounded: when it is full, low-priority writes are dropped first and the tile is simply
+ * downloaded again if it is ever needed.
+ */
+class DiskCacheWriter {
+
+	private static final String TAG = DiskCacheWriter.class.getSimpleName();
+
+	private static final int DISK_CACHE_INDEX = 0;
+
+	private static final int STATS_LOG_INTERVAL = 100;
+
+	private final ImageCacheSimple mCache;
+
+	private final int mMaxQueued;
+
+	private final int mBatchSize;
+
+	private final ArrayDeque<Write> mQueue = new ArrayDeque<Write>();
+
+	private final AtomicInteger mWritten = new AtomicInteger();
+
+	private final AtomicInteger mDropped = new AtomicInteger();
+
+	private final AtomicInteger mBatches = new AtomicInteger();
+
+	private Thread mThread;
+
+	/**
+	 * @param maxQueued Number of writes that may wait before writes are dropped
+	 * @param batchSize Largest number of writes committed per journal flush
+	 */
+	DiskCacheWriter(final ImageCacheSimple cache, final int maxQueued, final int batchSize) {
+		mCache = cache;
+		mMaxQueued = maxQueued;
+		mBatchSize = batchSize;
+	}
+
+	/**
+	 * Queues the bytes of a tile. The array must not be changed afterwards.
+	 *
+	 * @return false if the write was dropped because the queue is full
+	 */
+	boolean enqueue(final String key, final byte[] data, final int length, final TileMetadata metadata,
+	                final boolean lowPriority) {
+		final Write write = new Write(key, data, length, metadata.encode(), lowPriority);
+		synchronized(mQueue) {
+			// a full queue makes room for a visible tile by giving up a low-priority write
+			if(mQueue.size() >= mMaxQueued && (lowPriority || !dropLowPriorityLocked())) {
+				mDropped.incrementAndGet();
+				return false;
+			}
+			mQueue.addLast(write);
+			if(mThread == null) {
+				mThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						writeLoop();
+					}
+				}, TAG);
+				mThread.setDaemon(true);
+				mThread.start();
+			}
+			mQueue.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Drops every queued write, e.g. because the cache is being cleared.
+	 */
+	void clear() {
+		synchronized(mQueue) {
+			mDropped.addAndGet(mQueue.size());
+			mQueue.clear();
+		}
+	}
+
+	int getWritten() {
+		return mWritten.get();
+	}
+
+	int getDropped() {
+		return mDropped.get();
+	}
+
+	private boolean dropLowPriorityLocked() {
+		final Iterator<Write> iterator = mQueue.iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().mLowPriority) {
+				iterator.remove();
+				mDropped.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeLoop() {
+		final Write[] batch = new Write[mBatchSize];
+		while(true) {
+			int count = 0;
+			synchronized(mQueue) {
+				while(mQueue.isEmpty()) {
+					try {
+						mQueue.wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				while(count < mBatchSize && !mQueue.isEmpty()) {
+					batch[count++] = mQueue.pollFirst();
+				}
+			}
+			writeBatch(batch, count);
+			for(int i = 0; i < count; i++) {
+				batch[i] = null;
+			}
+		}
+	}
+
+	private void writeBatch(final Write[] batch, final int count) {
+		final DiskLruCache diskLruCache = mCache.getDiskLruCache();
+		if(diskLruCache == null) {
+			mDropped.addAndGet(count);
+			return;
+		}
+		final String[] keys = new String[count];
+		for(int i = 0; i < count; i++) {
+			keys[i] = batch[i].mKey;
+		}
+		DiskLruCache.Editor[] editors = null;
+		try {
+			editors = diskLruCache.edit(keys);
+			for(int i = 0; i < count; i++) {
+				final DiskLruCache.Editor editor = editors[i];
+				// write() commits or aborts the editor
+				editors[i] = null;
+				if(editor == null) {
+					// an entry of the same tile is being written already
+					mDropped.incrementAndGet();
+				} else if(write(editor, batch[i])) {
+					mWritten.incrementAndGet();
+				}
+			}
+			diskLruCache.flush();
+		} catch(IOException e) {
+			Log.e(TAG, "writeBatch", e);
+		} catch(IllegalStateException e) {
+			// the cache was closed by clearCache()
+			mDropped.addAndGet(count);
+		} finally {
+			if(editors != null) {
+				// the batch failed before these were written, release their entries
+				for(DiskLruCache.Editor editor : editors) {
+					if(editor != null) {
+						abortQuietly(editor);
+					}
+				}
+			}
+		}
+		if(BuildConfig.DEBUG && mBatches.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+			Log.d(TAG, "written " + mWritten.get() + ", dropped " + mDropped.get());
+		}
+	}
+
+	private static boolean write(final DiskLruCache.Editor editor, final Write write) {
+		OutputStream out = null;
+		boolean committed = false;
+		try {
+			out = editor.newOutputStream(DISK_CACHE_INDEX);
+			out.write(write.mData, 0, write.mLength);
+			out.close();
+			editor.set(ImageCacheSimple.DISK_CACHE_METADATA_INDEX, write.mMetadata);
+			editor.commit();
+			committed = true;
+		} catch(IOException e) {
+			Log.e(TAG, "write", e);
+		} finally {
+			Utils.close(out);
+			if(!committed) {
+				abortQuietly(editor);
+			}
+		}
+		return committed;
+	}
+
+	private static void abortQuietly(final DiskLruCache.Editor editor) {
+		try {
+			editor.abort();
+		} catch(IOException e) {
+			Log.e(TAG, "abortQuietly", e);
+		} catch(IllegalStateException e) {
+			// already completed, or the cache was closed
+		}
+	}
+
+	private static final class Write {
+		final String mKey;
+
+		final byte[] mData;
+
+		final int mLength;
+
+		final String mMetadata;
+
+		final boolean mLowPriority;
+
+		Write(final String key, final byte[] data, final int length, final String metadata, final boolean lowPriority) {
+			mKey = key;
+			mData = data;
+			mLength = length;
+			mMetadata = metadata;
+			mLowPriority = lowPriority;
+		}
+	}
+}
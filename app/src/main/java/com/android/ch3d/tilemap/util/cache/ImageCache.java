@@ -4,17 +4,20 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 
+import com.android.ch3d.tilemap.util.DiskLruCache;
+
 /**
  * Created by Ch3D on 23.04.2015.
  */
 public interface ImageCache {
 	/**
-	 * Adds a bitmap to both memory and disk cache.
+	 * Adds a decoded bitmap to the memory cache. The disk cache only ever holds the bytes the tile
+	 * was downloaded as, written by the downloader.
 	 *
-	 * @param data  Unique identifier for the bitmap to store
+	 * @param key   Packed tile key the bitmap is kept under
 	 * @param value The bitmap drawable to store
 	 */
-	void addBitmapToCache(String data, BitmapDrawable value);
+	void addBitmapToMemCache(long key, BitmapDrawable value);
 
 	/**
 	 * Clears both the memory and disk cache associated with this ImageCache object. Note that
@@ -22,6 +25,14 @@ public interface ImageCache {
 	 */
 	void clearCache();
 
+	/**
+	 * Opens an editor for the disk cache entry of the item. The caller must commit or abort it.
+	 *
+	 * @param data Unique identifier for which item to edit
+	 * @return The editor, or null if the disk cache is unavailable or the entry is already being edited
+	 */
+	DiskLruCache.Editor editDiskCache(String data);
+
 	/**
 	 * Get from disk cache.
 	 *
@@ -31,18 +42,62 @@ public interface ImageCache {
 	Bitmap getBitmapFromDiskCache(String data);
 
 	/**
-	 * Get from memory cache.
+	 * Get from the tile pack, if one is configured, or else from disk cache.
 	 *
-	 * @param data Unique identifier for which item to get
+	 * @param key  Packed tile key the tile is kept under in the pack
+	 * @param data Unique identifier for the item in the disk cache
+	 * @return The bitmap if found, null otherwise
+	 */
+	Bitmap getBitmapFromDiskCache(long key, String data);
+
+	/**
+	 * Checks the tile pack and the disk cache without decoding anything.
+	 *
+	 * @param key  Packed tile key the tile is kept under in the pack
+	 * @param data Unique identifier for the item in the disk cache
+	 * @return true if the item is stored in either
+	 */
+	boolean isInDiskCache(long key, String data);
+
+	/**
+	 * Queues the encoded bytes of a tile to be written to the disk cache in the background. The
+	 * array is kept until the write is done and must not be changed afterwards.
+	 *
+	 * @param data        Unique identifier for the item in the disk cache
+	 * @param metadata    Validators and expiry stored with the tile
+	 * @param lowPriority Whether the write may be dropped first when the disk is falling behind
+	 * @return false if the write was dropped
+	 */
+	boolean addToDiskCacheAsync(String data, byte[] bytes, int length, TileMetadata metadata, boolean lowPriority);
+
+	/**
+	 * Reads the validators and expiry stored with a disk cache entry.
+	 *
+	 * @param data Unique identifier for the item in the disk cache
+	 * @return The metadata, empty for entries stored without any, or null if there is no entry
+	 */
+	TileMetadata getDiskCacheMetadata(String data);
+
+	/**
+	 * Get from memory cache. Never blocks, so it is safe to call while drawing.
+	 *
+	 * @param key Packed tile key of the item to get
 	 * @return The bitmap drawable if found in cache, null otherwise
 	 */
-	BitmapDrawable getBitmapFromMemCache(String data);
+	BitmapDrawable getBitmapFromMemCache(long key);
 
 	/**
+	 * Takes a bitmap from the bitmap pool, see {@link BitmapPool}.
+	 *
 	 * @param options - BitmapFactory.Options with out* options populated
-	 * @return Bitmap that case be used for inBitmap
+	 * @return Bitmap that case be used for inBitmap, or null if the pool has none
 	 */
 	Bitmap getBitmapFromReusableSet(BitmapFactory.Options options);
 
+	/**
+	 * @return The pool that unreferenced tile bitmaps go to, or null if bitmaps are not reused
+	 */
+	BitmapPool getBitmapPool();
+
 	ImageCacheBase.ImageCacheParams getParams();
 }
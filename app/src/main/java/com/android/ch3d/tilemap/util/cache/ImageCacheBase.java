@@ -11,18 +11,18 @@ import android.os.Environment;
 import android.os.StatFs;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
-import android.util.Log;
 
-import com.android.ch3d.tilemap.BuildConfig;
 import com.android.ch3d.tilemap.util.Utils;
 
 import java.io.File;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
-import java.util.Set;
+
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE;
 
 /**
  * Created by Ch3D on 23.04.2015.
@@ -56,9 +56,11 @@ public abstract class ImageCacheBase implements ImageCache {
 
 		public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
 
-		public Bitmap.CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
+		// in kilobytes, like memCacheSize
+		public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
 
-		public int compressQuality = DEFAULT_COMPRESS_QUALITY;
+		// RGB_565 halves the memory of opaque tiles
+		public Bitmap.Config decodeConfig = DEFAULT_DECODE_CONFIG;
 
 		public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
 
@@ -66,6 +68,9 @@ public abstract class ImageCacheBase implements ImageCache {
 
 		public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
 
+		// read-only pack of pre-seeded tiles consulted before the disk cache, see TilePack
+		public File tilePackFile;
+
 		public ImageCacheParams(Context context, String diskCacheDirectoryName) {
 			diskCacheDir = getDiskCacheDir(context, diskCacheDirectoryName);
 		}
@@ -84,15 +89,24 @@ public abstract class ImageCacheBase implements ImageCache {
 		if(!Utils.hasKitKat()) {
 			return candidate.getWidth() == targetOptions.outWidth
 					&& candidate.getHeight() == targetOptions.outHeight
+					&& candidate.getConfig() == getDecodeConfig(targetOptions)
 					&& targetOptions.inSampleSize == 1;
 		}
 
+		// the candidate is reconfigured to the config the decode asks for
 		int width = targetOptions.outWidth / targetOptions.inSampleSize;
 		int height = targetOptions.outHeight / targetOptions.inSampleSize;
-		int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+		int byteCount = width * height * getBytesPerPixel(getDecodeConfig(targetOptions));
 		return byteCount <= candidate.getAllocationByteCount();
 	}
 
+	/**
+	 * @return The config a decode with the given options produces
+	 */
+	static Bitmap.Config getDecodeConfig(BitmapFactory.Options options) {
+		return options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+	}
+
 	static RetainFragment findOrCreateRetainFragment(FragmentManager fm) {
 		RetainFragment mRetainFragment = (RetainFragment) fm.findFragmentByTag(TAG);
 		if(mRetainFragment == null) {
@@ -102,8 +116,8 @@ public abstract class ImageCacheBase implements ImageCache {
 		return mRetainFragment;
 	}
 
-	private static int getBytesPerPixel(Bitmap.Config config) {
-		if(config == Bitmap.Config.ARGB_8888) {
+	public static int getBytesPerPixel(Bitmap.Config config) {
+		if(config == null || config == Bitmap.Config.ARGB_8888) {
 			return 4;
 		} else if(config == Bitmap.Config.RGB_565) {
 			return 2;
@@ -190,53 +204,91 @@ public abstract class ImageCacheBase implements ImageCache {
 
 	private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
-	private static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.JPEG;
+	private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
 
-	private static final int DEFAULT_COMPRESS_QUALITY = 70;
+	private static final Bitmap.Config DEFAULT_DECODE_CONFIG = Bitmap.Config.ARGB_8888;
 
-	protected LruCache<String, BitmapDrawable> mMemoryCache;
+	protected TileMemoryCache mMemoryCache;
 
-	protected Set<SoftReference<Bitmap>> mReusableBitmaps;
+	protected BitmapPool mBitmapPool;
 
 	protected ImageCacheBase.ImageCacheParams mCacheParams;
 
 	@Override
-	public BitmapDrawable getBitmapFromMemCache(final String data) {
-		BitmapDrawable memValue = null;
+	public void addBitmapToMemCache(final long key, final BitmapDrawable value) {
 		if(mMemoryCache != null) {
-			memValue = mMemoryCache.get(data);
+			if(value instanceof TileDrawable) {
+				((TileDrawable) value).setIsCached(true);
+			}
+			mMemoryCache.put(key, value);
 		}
-		if(BuildConfig.DEBUG && memValue != null) {
-			Log.d(TAG, "Memory cache hit");
+	}
+
+	@Override
+	public BitmapDrawable getBitmapFromMemCache(final long key) {
+		BitmapDrawable memValue = null;
+		if(mMemoryCache != null) {
+			memValue = mMemoryCache.get(key);
 		}
 		return memValue;
 	}
 
 	@Override
 	public Bitmap getBitmapFromReusableSet(final BitmapFactory.Options options) {
-		Bitmap bitmap = null;
-
-		if(mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-			synchronized(mReusableBitmaps) {
-				final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-				Bitmap item;
-
-				while(iterator.hasNext()) {
-					item = iterator.next().get();
-					if(null != item && item.isMutable()) {
-						if(canUseForInBitmap(item, options)) {
-							bitmap = item;
-							iterator.remove();
-							break;
-						}
-					} else {
-						iterator.remove();
-					}
-				}
+		return mBitmapPool != null ? mBitmapPool.get(options) : null;
+	}
+
+	@Override
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Changes the memory cache budget, evicting tiles if the cache is now over it.
+	 */
+	public void setMemCacheMaxSize(final long maxBytes) {
+		if(mMemoryCache != null) {
+			mMemoryCache.setMaxSize(maxBytes);
+		}
+	}
+
+	/**
+	 * Gives memory back in stages: the bitmap pool goes first, then tiles that are quickest to
+	 * load again, and everything once the process is likely to be killed. The cache grows back to
+	 * its budget as tiles are loaded again. A higher level never keeps more than a lower one.
+	 * <p/>
+	 * Not registered as a ComponentCallbacks2: the cache lives in a retained fragment, and the
+	 * application context would keep it past the fragment. The activity forwards its callbacks.
+	 *
+	 * @param level A {@link android.content.ComponentCallbacks2} trim level
+	 */
+	public void onTrimMemory(final int level) {
+		if(level >= TRIM_MEMORY_MODERATE) {
+			trimMemCache(0);
+		} else if(level >= TRIM_MEMORY_BACKGROUND) {
+			trimMemCache(8);
+		} else if(level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+			// UI_HIDDEN too, which lies above RUNNING_CRITICAL
+			trimMemCache(4);
+		} else if(level >= TRIM_MEMORY_RUNNING_LOW) {
+			trimMemCache(2);
+		}
+		if(mBitmapPool != null) {
+			if(level >= TRIM_MEMORY_RUNNING_LOW) {
+				mBitmapPool.clear();
+			} else if(level >= TRIM_MEMORY_RUNNING_MODERATE) {
+				mBitmapPool.trimToSize(mBitmapPool.maxSize() / 2);
 			}
 		}
+	}
 
-		return bitmap;
+	/**
+	 * @param divisor The memory cache is trimmed to 1 / divisor of its budget, or emptied for 0
+	 */
+	private void trimMemCache(final int divisor) {
+		if(mMemoryCache != null) {
+			mMemoryCache.trimToSize(divisor == 0 ? 0 : mMemoryCache.maxSize() / divisor);
+		}
 	}
 
 	@Override
@@ -2,24 +2,28 @@ package com.android.ch3d.tilemap.util.cache;
 
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Process;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
 import com.android.ch3d.tilemap.BuildConfig;
+import com.android.ch3d.tilemap.util.DiskLruCache;
 import com.android.ch3d.tilemap.util.Utils;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
+import static com.android.ch3d.tilemap.util.ImageUtils.decodeSampledBitmapFromBuffer;
 import static com.android.ch3d.tilemap.util.ImageUtils.decodeSampledBitmapFromDescriptor;
 
 /**
@@ -37,119 +41,436 @@ public class ImageCacheSimple extends ImageCacheBase {
 		return imageCache;
 	}
 
-	private final Object mDiskCacheLock = new Object();
-
 	private static final String TAG = ImageCacheSimple.class.getSimpleName();
 
 	private static final boolean DEBUG = BuildConfig.DEBUG;
 
+	// version 2 added the metadata value; entries of version 1 journals are imported like loose files
+	private static final int DISK_CACHE_VERSION = 2;
+
+	private static final int DISK_CACHE_VALUE_COUNT = 2;
+
+	private static final int DISK_CACHE_INDEX = 0;
+
+	public static final int DISK_CACHE_METADATA_INDEX = 1;
+
+	// Names of the one-file-per-tile entries written before the disk cache was journaled
+	private static final Pattern LOOSE_FILE_NAME = Pattern.compile("[0-9a-f]{32}|-?[0-9]+");
+
+	private static final int MEMORY_CACHE_SHARDS = 8;
+
+	private static final int MAX_QUEUED_DISK_WRITES = 32;
+
+	private static final int DISK_WRITE_BATCH_SIZE = 8;
+
+	private final Object mDiskCacheLock = new Object();
+
 	private final int mImgSize;
 
+	private DiskLruCache mDiskLruCache;
+
+	private boolean mDiskCacheStarting = true;
+
+	// guarded by mDiskCacheLock, like the disk cache it is opened with
+	private TilePack mTilePack;
+
+	private boolean mTilePackStarting = true;
+
+	private final DiskCacheWriter mDiskCacheWriter = new DiskCacheWriter(this, MAX_QUEUED_DISK_WRITES, DISK_WRITE_BATCH_SIZE);
+
 	private ImageCacheSimple(ImageCacheBase.ImageCacheParams cacheParams, int imgSize) {
 		mImgSize = imgSize;
 		init(cacheParams);
 	}
 
 	@Override
-	public void addBitmapToCache(final String data, final BitmapDrawable value) {
+	public void clearCache() {
 		if(mMemoryCache != null) {
-			mMemoryCache.put(data, value);
+			mMemoryCache.evictAll();
+			if(DEBUG) {
+				Log.d(TAG, "Memory cache cleared");
+			}
 		}
 
+		mDiskCacheWriter.clear();
 		synchronized(mDiskCacheLock) {
-			final String key = hashKeyForDisk(data);
-			final File file = getFileForKey(key);
-			file.getParentFile().mkdirs();
-			OutputStream out = null;
-			try {
-				out = new FileOutputStream(file);
-				value.getBitmap().compress(mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-				out.close();
-			} catch(final IOException e) {
-				Log.e(TAG, "addBitmapToCache", e);
-			} catch(Exception e) {
-				Log.e(TAG, "addBitmapToCache", e);
-			} finally {
-				Utils.close(out);
+			mDiskCacheStarting = true;
+			if(mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+				try {
+					mDiskLruCache.delete();
+					if(DEBUG) {
+						Log.d(TAG, "Disk cache cleared");
+					}
+				} catch(IOException e) {
+					Log.e(TAG, "clearCache", e);
+				}
+				mDiskLruCache = null;
 			}
+			initDiskCache();
 		}
 	}
 
 	@Override
-	public void clearCache() {
-		if(mMemoryCache != null) {
-			mMemoryCache.evictAll();
-			if(DEBUG) {
-				Log.d(TAG, "Memory cache cleared");
+	public DiskLruCache.Editor editDiskCache(final String data) {
+		final DiskLruCache diskLruCache = getDiskLruCache();
+		if(diskLruCache == null) {
+			return null;
+		}
+		try {
+			return diskLruCache.edit(hashKeyForDisk(data));
+		} catch(IOException e) {
+			Log.e(TAG, "editDiskCache", e);
+		} catch(IllegalStateException e) {
+			Log.e(TAG, "editDiskCache", e);
+		}
+		return null;
+	}
+
+	@Override
+	public Bitmap getBitmapFromDiskCache(final long key, final String data) {
+		final TilePack tilePack = getTilePack();
+		if(tilePack != null) {
+			final ByteBuffer tile = tilePack.getTile(key);
+			if(tile != null) {
+				final Bitmap bitmap = decodeSampledBitmapFromBuffer(tile, mImgSize, mImgSize, this);
+				if(bitmap != null) {
+					return bitmap;
+				}
 			}
 		}
+		return getBitmapFromDiskCache(data);
+	}
 
-		synchronized(mDiskCacheLock) {
-			mCacheParams.diskCacheDir.delete();
+	@Override
+	public boolean isInDiskCache(final long key, final String data) {
+		final TilePack tilePack = getTilePack();
+		if(tilePack != null && tilePack.getTile(key) != null) {
+			return true;
+		}
+		final DiskLruCache diskLruCache = getDiskLruCache();
+		if(diskLruCache == null) {
+			return false;
 		}
+		final DiskLruCache.Snapshot snapshot;
+		try {
+			snapshot = diskLruCache.get(hashKeyForDisk(data));
+		} catch(IOException e) {
+			Log.e(TAG, "isInDiskCache - " + e);
+			return false;
+		} catch(IllegalStateException e) {
+			// the cache was closed by clearCache()
+			return false;
+		}
+		if(snapshot == null) {
+			return false;
+		}
+		snapshot.close();
+		return true;
+	}
+
+	@Override
+	public boolean addToDiskCacheAsync(final String data, final byte[] bytes, final int length, final TileMetadata metadata,
+	                                   final boolean lowPriority) {
+		if(!mCacheParams.diskCacheEnabled) {
+			return false;
+		}
+		return mDiskCacheWriter.enqueue(hashKeyForDisk(data), bytes, length, metadata, lowPriority);
+	}
+
+	@Override
+	public TileMetadata getDiskCacheMetadata(final String data) {
+		final DiskLruCache diskLruCache = getDiskLruCache();
+		if(diskLruCache == null) {
+			return null;
+		}
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = diskLruCache.get(hashKeyForDisk(data));
+			return snapshot == null ? null : TileMetadata.decode(snapshot.getString(DISK_CACHE_METADATA_INDEX));
+		} catch(IOException e) {
+			Log.e(TAG, "getDiskCacheMetadata - " + e);
+		} catch(IllegalStateException e) {
+			// the cache was closed by clearCache()
+		} finally {
+			Utils.close(snapshot);
+		}
+		return null;
 	}
 
 	@Override
 	public Bitmap getBitmapFromDiskCache(final String data) {
-		final String key = hashKeyForDisk(data);
+		final DiskLruCache diskLruCache = getDiskLruCache();
+		if(diskLruCache == null) {
+			return null;
+		}
+
 		Bitmap bitmap = null;
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = diskLruCache.get(hashKeyForDisk(data));
+			if(snapshot == null) {
+				return null;
+			}
+			if(DEBUG) {
+				Log.d(TAG, "Disk cache hit");
+			}
+
+			final InputStream inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+			if(inputStream != null) {
+				FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+				bitmap = decodeSampledBitmapFromDescriptor(fd, mImgSize, mImgSize, this);
+			}
+		} catch(final IOException e) {
+			Log.e(TAG, "getBitmapFromDiskCache - " + e);
+		} catch(final IllegalStateException e) {
+			// the cache was closed by clearCache() while this read was in progress
+			Log.e(TAG, "getBitmapFromDiskCache - " + e);
+		} finally {
+			Utils.close(snapshot);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Waits for a pending initialization and returns the disk cache. The global lock is only held
+	 * for this hand-off; snapshots of an entry can be read concurrently, and fetches and commits of
+	 * a key are serialized by the downloader.
+	 */
+	DiskLruCache getDiskLruCache() {
+		synchronized(mDiskCacheLock) {
+			waitForDiskCache();
+			return mDiskLruCache;
+		}
+	}
 
+	/**
+	 * Waits for the tile pack to be mapped.
+	 *
+	 * @return The pack, or null if none is configured or it could not be opened
+	 */
+	private TilePack getTilePack() {
 		synchronized(mDiskCacheLock) {
-			InputStream inputStream = null;
+			while(mTilePackStarting) {
+				try {
+					mDiskCacheLock.wait();
+				} catch(InterruptedException e) {
+				}
+			}
+			return mTilePack;
+		}
+	}
+
+	private void openTilePack() {
+		TilePack tilePack = null;
+		if(mCacheParams.tilePackFile != null && mCacheParams.tilePackFile.isFile()) {
 			try {
-				if(DEBUG) {
-					Log.d(TAG, "Disk cache hit");
+				tilePack = TilePack.open(mCacheParams.tilePackFile);
+				if(BuildConfig.DEBUG) {
+					Log.d(TAG, "Tile pack opened (" + tilePack.getCount() + " tiles)");
+				}
+			} catch(IOException e) {
+				Log.e(TAG, "init - tile pack", e);
+			}
+		}
+		synchronized(mDiskCacheLock) {
+			mTilePack = tilePack;
+			mTilePackStarting = false;
+			mDiskCacheLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Opens the journaled disk cache. Caches left by builds that wrote one loose file per tile,
+	 * or a version 1 journal without metadata, are imported into the journal the first time it is
+	 * created.
+	 */
+	public void initDiskCache() {
+		synchronized(mDiskCacheLock) {
+			if(mDiskLruCache == null || mDiskLruCache.isClosed()) {
+				final File diskCacheDir = mCacheParams.diskCacheDir;
+				if(mCacheParams.diskCacheEnabled && diskCacheDir != null) {
+					if(!diskCacheDir.exists()) {
+						diskCacheDir.mkdirs();
+					}
+					if(getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
+						unpackVersion1Journal(diskCacheDir);
+						final List<File> looseFiles = findLooseFiles(diskCacheDir);
+						try {
+							mDiskLruCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+							                                  mCacheParams.diskCacheSize);
+							if(DEBUG) {
+								Log.d(TAG, "Disk cache initialized");
+							}
+							migrateLooseFiles(looseFiles);
+						} catch(final IOException e) {
+							mCacheParams.diskCacheDir = null;
+							Log.e(TAG, "initDiskCache - " + e);
+						}
+					}
+				}
+			}
+			mDiskCacheStarting = false;
+			mDiskCacheLock.notifyAll();
+		}
+	}
+
+	private static List<File> findLooseFiles(final File diskCacheDir) {
+		final List<File> looseFiles = new ArrayList<File>();
+		if(new File(diskCacheDir, DiskLruCache.JOURNAL_FILE).exists()) {
+			return looseFiles;
+		}
+		final File[] files = diskCacheDir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(file.isFile() && LOOSE_FILE_NAME.matcher(file.getName()).matches()) {
+					looseFiles.add(file);
 				}
+			}
+		}
+		return looseFiles;
+	}
+
+	/**
+	 * Turns the entries of a version 1 journal back into loose files and deletes the journal, which
+	 * {@link DiskLruCache#open} would otherwise discard along with every entry.
+	 */
+	private static void unpackVersion1Journal(final File diskCacheDir) {
+		final File journal = new File(diskCacheDir, DiskLruCache.JOURNAL_FILE);
+		if(!journal.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+			// magic, journal format, app version, value count
+			reader.readLine();
+			reader.readLine();
+			final String appVersion = reader.readLine();
+			final String valueCount = reader.readLine();
+			if(!"1".equals(appVersion) || !"1".equals(valueCount)) {
+				return;
+			}
+		} catch(IOException e) {
+			Log.e(TAG, "unpackVersion1Journal", e);
+			return;
+		} finally {
+			Utils.close(reader);
+		}
 
-				final File fileForKey = getFileForKey(key);
-				if(!fileForKey.exists()) {
-					return null;
+		// clean files are named "<key>.0"; files of edits in progress end in ".tmp" and are dropped
+		final File[] files = diskCacheDir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				final String name = file.getName();
+				if(name.endsWith(".0") && LOOSE_FILE_NAME.matcher(name.substring(0, name.length() - 2)).matches()) {
+					if(!file.renameTo(new File(diskCacheDir, name.substring(0, name.length() - 2)))) {
+						file.delete();
+					}
+				} else if(name.endsWith(".tmp")) {
+					file.delete();
 				}
+			}
+		}
+		journal.delete();
+	}
 
-				inputStream = new FileInputStream(fileForKey);
-				if(inputStream != null) {
-					FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-					// provide MAX_VALUE to skip sampling
-					bitmap = decodeSampledBitmapFromDescriptor(fd, mImgSize, mImgSize, this);
+	private void migrateLooseFiles(final List<File> looseFiles) {
+		if(looseFiles.isEmpty()) {
+			return;
+		}
+		final byte[] buffer = new byte[8 * 1024];
+		int migrated = 0;
+		for(File file : looseFiles) {
+			InputStream in = null;
+			OutputStream out = null;
+			DiskLruCache.Editor editor = null;
+			final long cachedAt = file.lastModified();
+			try {
+				editor = mDiskLruCache.edit(file.getName());
+				if(editor == null) {
+					continue;
 				}
-			} catch(final IOException e) {
-				Log.e(TAG, "getBitmapFromDiskCache - " + e);
+				in = new FileInputStream(file);
+				out = editor.newOutputStream(DISK_CACHE_INDEX);
+				int count;
+				while((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+				}
+				out.close();
+				// no headers were kept; the first view revalidates with If-Modified-Since
+				editor.set(DISK_CACHE_METADATA_INDEX, TileMetadata.forUnknownAge(cachedAt).encode());
+				editor.commit();
+				editor = null;
+				migrated++;
+			} catch(IOException e) {
+				Log.e(TAG, "migrateLooseFiles", e);
 			} finally {
-				Utils.close(inputStream);
+				if(editor != null) {
+					try {
+						editor.abort();
+					} catch(IOException e) {
+						Log.e(TAG, "migrateLooseFiles", e);
+					}
+				}
+				Utils.close(in);
+				Utils.close(out);
+				file.delete();
 			}
-			return bitmap;
+		}
+		try {
+			mDiskLruCache.flush();
+		} catch(IOException e) {
+			Log.e(TAG, "migrateLooseFiles", e);
+		}
+		if(DEBUG) {
+			Log.d(TAG, "Migrated " + migrated + " of " + looseFiles.size() + " loose cache files");
 		}
 	}
 
-	private File getFileForKey(final String key) {
-		return new File(mCacheParams.diskCacheDir + File.separator + key);
+	private void waitForDiskCache() {
+		while(mDiskCacheStarting) {
+			try {
+				mDiskCacheLock.wait();
+			} catch(InterruptedException e) {
+			}
+		}
 	}
 
 	private void init(final ImageCacheBase.ImageCacheParams cacheParams) {
 		mCacheParams = cacheParams;
 
-		mCacheParams.diskCacheDir.mkdirs();
-
 		if(mCacheParams.memoryCacheEnabled) {
 			if(BuildConfig.DEBUG) {
 				Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
 			}
 			if(Utils.hasHoneycomb()) {
-				mReusableBitmaps = Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+				mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024L);
 			}
-			mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
+			final long maxBytes = mCacheParams.memCacheSize * 1024L;
+			mMemoryCache = new TileMemoryCache(maxBytes, MEMORY_CACHE_SHARDS, new TileMemoryCache.EvictionListener() {
 				@Override
-				protected void entryRemoved(boolean evicted, String key,
-				                            BitmapDrawable oldValue, BitmapDrawable newValue) {
-					mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+				public void onEntryRemoved(long key, BitmapDrawable oldValue) {
+					// the bitmap goes to the pool once no draw holds it any more
+					if(oldValue instanceof TileDrawable) {
+						((TileDrawable) oldValue).setIsCached(false);
+					}
 				}
+			});
+		}
 
-				@Override
-				protected int sizeOf(String key, BitmapDrawable value) {
-					final int bitmapSize = getBitmapSize(value) / 1024;
-					return bitmapSize == 0 ? 1 : bitmapSize;
+		// mapping the pack and opening the journal is disk access, and the cache is usually created
+		// on the main thread; readers wait for it in getTilePack() and getDiskLruCache()
+		final Thread initThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				openTilePack();
+				if(mCacheParams.initDiskCacheOnCreate) {
+					initDiskCache();
 				}
-			};
-		}
+			}
+		}, TAG + "-init");
+		initThread.setDaemon(true);
+		initThread.start();
 	}
-}
\ No newline at end of file
+}
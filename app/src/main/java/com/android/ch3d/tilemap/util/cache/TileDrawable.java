@@ -0,0 +1,69 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * Tile bitmap shared by the memory cache and the draws using it. The memory cache and every draw
+ * hold a reference; only once the tile has left the cache and the last draw has released it is
+ * the bitmap handed to the {@link BitmapPool}, so no decode can reuse a bitmap still being drawn.
+ */
+public class TileDrawable extends BitmapDrawable {
+
+	private final BitmapPool mBitmapPool;
+
+	private int mCacheRefCount;
+
+	private int mDisplayRefCount;
+
+	// set once the bitmap has gone to the pool; the drawable must not be drawn any more
+	private boolean mReleased;
+
+	/**
+	 * @param bitmapPool Pool the bitmap goes to once unreferenced, or null to leave it to the GC
+	 */
+	public TileDrawable(final Resources res, final Bitmap bitmap, final BitmapPool bitmapPool) {
+		super(res, bitmap);
+		mBitmapPool = bitmapPool;
+	}
+
+	/**
+	 * Called by the memory cache when it takes or drops the tile.
+	 */
+	public synchronized void setIsCached(final boolean isCached) {
+		if(isCached) {
+			mCacheRefCount++;
+		} else {
+			mCacheRefCount--;
+		}
+		checkState();
+	}
+
+	/**
+	 * Takes a reference for a draw, which must be given back with {@link #release()}.
+	 *
+	 * @return false if the bitmap has already gone to the pool, in which case it must not be drawn
+	 */
+	public synchronized boolean acquire() {
+		if(mReleased) {
+			return false;
+		}
+		mDisplayRefCount++;
+		return true;
+	}
+
+	public synchronized void release() {
+		mDisplayRefCount--;
+		checkState();
+	}
+
+	private void checkState() {
+		if(mCacheRefCount <= 0 && mDisplayRefCount <= 0 && !mReleased) {
+			mReleased = true;
+			if(mBitmapPool != null) {
+				mBitmapPool.put(getBitmap());
+			}
+		}
+	}
+}
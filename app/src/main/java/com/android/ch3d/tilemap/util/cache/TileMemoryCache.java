@@ -0,0 +1,412 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import android.graphics.drawable.BitmapDrawable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-bounded LRU memory cache keyed by packed tile keys (see
+ * {@link com.android.ch3d.tilemap.model.TileKey}). Keys are spread over independently locked
+ * shards, each an open-addressing table of primitive longs with its own LRU list, so lookups hash
+ * no strings and box nothing. {@link #get} never waits for a lock: a lookup that would block
+ * behind a writer is reported as a miss.
+ * <p/>
+ * The budget applies to the cache as a whole. Entries carry an access stamp from a shared clock,
+ * and eviction is a clock hand going round the shards: each shard remembers the clock when the
+ * hand last passed it, and its least recently used entry is evicted if it has not been used since.
+ * A shard holding more of the visible tiles than its share so keeps them while the cache is under
+ * budget, and an eviction locks only the shard it evicts from.
+ */
+public class TileMemoryCache {
+
+	public interface EvictionListener {
+		/**
+		 * Called when an entry is evicted, replaced or removed, after the shard lock is released.
+		 */
+		void onEntryRemoved(long key, BitmapDrawable oldValue);
+	}
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Shard[] mShards;
+
+	private final int mShardShift;
+
+	private final EvictionListener mEvictionListener;
+
+	private final AtomicLong mHits = new AtomicLong();
+
+	private final AtomicLong mMisses = new AtomicLong();
+
+	private final AtomicLong mBytes = new AtomicLong();
+
+	// orders accesses over all shards for eviction
+	private final AtomicLong mClock = new AtomicLong();
+
+	// shard the eviction hand points at
+	private final AtomicInteger mHand = new AtomicInteger();
+
+	private volatile long mMaxBytes;
+
+	/**
+	 * @param maxBytes Budget for the sum of bitmap allocation sizes
+	 * @param shards   Number of shards, rounded up to a power of two
+	 */
+	public TileMemoryCache(final long maxBytes, final int shards, final EvictionListener evictionListener) {
+		int count = 1;
+		int bits = 0;
+		while(count < shards) {
+			count <<= 1;
+			bits++;
+		}
+		mShards = new Shard[count];
+		for(int i = 0; i < count; i++) {
+			mShards[i] = new Shard();
+		}
+		mShardShift = 64 - bits;
+		mEvictionListener = evictionListener;
+		setMaxSize(maxBytes);
+	}
+
+	/**
+	 * Returns the cached value without ever blocking; safe on the main thread.
+	 *
+	 * @return The value, or null if absent or if its shard is busy
+	 */
+	public BitmapDrawable get(final long key) {
+		final long hash = hash(key);
+		final Shard shard = shardFor(hash);
+		if(!shard.mLock.tryLock()) {
+			mMisses.incrementAndGet();
+			return null;
+		}
+		final BitmapDrawable value;
+		try {
+			value = shard.get(key, hash);
+		} finally {
+			shard.mLock.unlock();
+		}
+		if(value != null) {
+			mHits.incrementAndGet();
+		} else {
+			mMisses.incrementAndGet();
+		}
+		return value;
+	}
+
+	public void put(final long key, final BitmapDrawable value) {
+		if(value == null) {
+			throw new NullPointerException("value == null");
+		}
+		final long hash = hash(key);
+		final Shard shard = shardFor(hash);
+		final BitmapDrawable oldValue;
+		shard.mLock.lock();
+		try {
+			oldValue = shard.put(key, hash, value, ImageCacheBase.getBitmapSize(value));
+		} finally {
+			shard.mLock.unlock();
+		}
+		if(oldValue != null && oldValue != value) {
+			onEntryRemoved(key, oldValue);
+		}
+		trimToSize(mMaxBytes);
+	}
+
+	public BitmapDrawable remove(final long key) {
+		final long hash = hash(key);
+		final Shard shard = shardFor(hash);
+		final BitmapDrawable value;
+		shard.mLock.lock();
+		try {
+			value = shard.remove(key, hash);
+		} finally {
+			shard.mLock.unlock();
+		}
+		if(value != null) {
+			onEntryRemoved(key, value);
+		}
+		return value;
+	}
+
+	public void evictAll() {
+		trimToSize(0);
+	}
+
+	/**
+	 * Evicts least recently used entries until the cache holds at most the given number of bytes.
+	 */
+	public void trimToSize(final long maxBytes) {
+		// two rounds of the hand pass every shard once after stamping it; after that the hand
+		// evicts whatever head it finds, so a cache in constant use still shrinks
+		int idleSteps = 0;
+		while(mBytes.get() > maxBytes) {
+			final Shard shard = mShards[mHand.getAndIncrement() & (mShards.length - 1)];
+			final long key;
+			final BitmapDrawable value;
+			shard.mLock.lock();
+			try {
+				final int head = shard.mHead;
+				if(head < 0 || (shard.mStamps[head] > shard.mHandStamp && idleSteps < mShards.length * 2)) {
+					// empty, or used since the hand last passed: give the shard a second chance
+					shard.mHandStamp = mClock.get();
+					if(++idleSteps > mShards.length * 3) {
+						// every shard is empty
+						return;
+					}
+					continue;
+				}
+				key = shard.mKeys[head];
+				value = shard.evictHead();
+				shard.mHandStamp = mClock.get();
+			} finally {
+				shard.mLock.unlock();
+			}
+			idleSteps = 0;
+			onEntryRemoved(key, value);
+		}
+	}
+
+	private void onEntryRemoved(final long key, final BitmapDrawable value) {
+		if(mEvictionListener != null) {
+			mEvictionListener.onEntryRemoved(key, value);
+		}
+	}
+
+	/**
+	 * Changes the budget, evicting entries if the cache is now over it.
+	 */
+	public void setMaxSize(final long maxBytes) {
+		mMaxBytes = maxBytes;
+		trimToSize(maxBytes);
+	}
+
+	public long maxSize() {
+		return mMaxBytes;
+	}
+
+	public long size() {
+		return mBytes.get();
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	private Shard shardFor(final long hash) {
+		return mShards.length == 1 ? mShards[0] : mShards[(int) (hash >>> mShardShift)];
+	}
+
+	private static long hash(final long key) {
+		return key * 0x9E3779B97F4A7C15L;
+	}
+
+	private final class Shard {
+		final ReentrantLock mLock = new ReentrantLock();
+
+		// open-addressing table of entry index + 1, 0 marks an empty slot
+		private int[] mTable = new int[INITIAL_CAPACITY * 2];
+
+		private long[] mKeys = new long[INITIAL_CAPACITY];
+
+		private long[] mHashes = new long[INITIAL_CAPACITY];
+
+		private BitmapDrawable[] mValues = new BitmapDrawable[INITIAL_CAPACITY];
+
+		private int[] mSizes = new int[INITIAL_CAPACITY];
+
+		// value of mClock at the last access of each entry, ascending along the LRU list
+		private long[] mStamps = new long[INITIAL_CAPACITY];
+
+		// LRU list from mHead (eldest) to mTail (newest); mNext also links the free list
+		private int[] mPrev = new int[INITIAL_CAPACITY];
+
+		private int[] mNext = new int[INITIAL_CAPACITY];
+
+		private int mHead = -1;
+
+		private int mTail = -1;
+
+		private int mFree = -1;
+
+		private int mUsed;
+
+		private int mCount;
+
+		// value of mClock when the eviction hand last passed this shard
+		long mHandStamp;
+
+		BitmapDrawable get(final long key, final long hash) {
+			final int slot = findSlot(key, hash);
+			final int entry = mTable[slot] - 1;
+			if(entry < 0) {
+				return null;
+			}
+			moveToTail(entry);
+			return mValues[entry];
+		}
+
+		/**
+		 * @return The value replaced, or null
+		 */
+		BitmapDrawable put(final long key, final long hash, final BitmapDrawable value, final int size) {
+			final int slot = findSlot(key, hash);
+			int entry = mTable[slot] - 1;
+			if(entry >= 0) {
+				final BitmapDrawable oldValue = mValues[entry];
+				mBytes.addAndGet(size - mSizes[entry]);
+				mValues[entry] = value;
+				mSizes[entry] = size;
+				moveToTail(entry);
+				return oldValue;
+			} else {
+				entry = allocateEntry();
+				mKeys[entry] = key;
+				mHashes[entry] = hash;
+				mValues[entry] = value;
+				mSizes[entry] = size;
+				linkAtTail(entry);
+				mTable[slot] = entry + 1;
+				mCount++;
+				mBytes.addAndGet(size);
+				if(mCount * 2 > mTable.length) {
+					rehash(mTable.length * 2);
+				}
+				return null;
+			}
+		}
+
+		BitmapDrawable remove(final long key, final long hash) {
+			final int slot = findSlot(key, hash);
+			final int entry = mTable[slot] - 1;
+			if(entry < 0) {
+				return null;
+			}
+			final BitmapDrawable value = mValues[entry];
+			removeEntry(slot, entry);
+			return value;
+		}
+
+		/**
+		 * Removes the least recently used entry, which must exist.
+		 */
+		BitmapDrawable evictHead() {
+			final int entry = mHead;
+			final BitmapDrawable value = mValues[entry];
+			removeEntry(findSlot(mKeys[entry], mHashes[entry]), entry);
+			return value;
+		}
+
+		private int findSlot(final long key, final long hash) {
+			final int mask = mTable.length - 1;
+			int slot = (int) (hash >>> 32) & mask;
+			while(mTable[slot] != 0 && mKeys[mTable[slot] - 1] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void removeEntry(int slot, final int entry) {
+			unlink(entry);
+			mBytes.addAndGet(-mSizes[entry]);
+			mValues[entry] = null;
+			mNext[entry] = mFree;
+			mFree = entry;
+			mCount--;
+
+			// backward-shift deletion keeps probe chains intact without tombstones
+			final int mask = mTable.length - 1;
+			int next = slot;
+			while(true) {
+				mTable[slot] = 0;
+				while(true) {
+					next = (next + 1) & mask;
+					if(mTable[next] == 0) {
+						return;
+					}
+					final int ideal = (int) (mHashes[mTable[next] - 1] >>> 32) & mask;
+					final boolean stays = slot <= next ? (slot < ideal && ideal <= next) : (slot < ideal || ideal <= next);
+					if(!stays) {
+						break;
+					}
+				}
+				mTable[slot] = mTable[next];
+				slot = next;
+			}
+		}
+
+		private int allocateEntry() {
+			if(mFree >= 0) {
+				final int entry = mFree;
+				mFree = mNext[entry];
+				return entry;
+			}
+			if(mUsed == mKeys.length) {
+				final int capacity = mKeys.length * 2;
+				mKeys = Arrays.copyOf(mKeys, capacity);
+				mHashes = Arrays.copyOf(mHashes, capacity);
+				mValues = Arrays.copyOf(mValues, capacity);
+				mSizes = Arrays.copyOf(mSizes, capacity);
+				mStamps = Arrays.copyOf(mStamps, capacity);
+				mPrev = Arrays.copyOf(mPrev, capacity);
+				mNext = Arrays.copyOf(mNext, capacity);
+			}
+			return mUsed++;
+		}
+
+		private void rehash(final int tableSize) {
+			mTable = new int[tableSize];
+			final int mask = tableSize - 1;
+			for(int entry = mHead; entry >= 0; entry = mNext[entry]) {
+				int slot = (int) (mHashes[entry] >>> 32) & mask;
+				while(mTable[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				mTable[slot] = entry + 1;
+			}
+		}
+
+		private void linkAtTail(final int entry) {
+			mStamps[entry] = mClock.incrementAndGet();
+			mPrev[entry] = mTail;
+			mNext[entry] = -1;
+			if(mTail >= 0) {
+				mNext[mTail] = entry;
+			} else {
+				mHead = entry;
+			}
+			mTail = entry;
+		}
+
+		private void unlink(final int entry) {
+			final int prev = mPrev[entry];
+			final int next = mNext[entry];
+			if(prev >= 0) {
+				mNext[prev] = next;
+			} else {
+				mHead = next;
+			}
+			if(next >= 0) {
+				mPrev[next] = prev;
+			} else {
+				mTail = prev;
+			}
+		}
+
+		private void moveToTail(final int entry) {
+			if(entry != mTail) {
+				unlink(entry);
+				linkAtTail(entry);
+			} else {
+				mStamps[entry] = mClock.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP validators and freshness of a cached tile, stored next to the tile in the disk cache.
+ */
+public class TileMetadata {
+
+	private static final String SEPARATOR = "\n";
+
+	private String mETag;
+
+	private String mLastModified;
+
+	// wall-clock time in ms after which the tile must be revalidated, 0 if unknown
+	private long mExpires;
+
+	public String getETag() {
+		return mETag;
+	}
+
+	public void setETag(final String eTag) {
+		mETag = eTag;
+	}
+
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	public void setLastModified(final String lastModified) {
+		mLastModified = lastModified;
+	}
+
+	public long getExpires() {
+		return mExpires;
+	}
+
+	public void setExpires(final long expires) {
+		mExpires = expires;
+	}
+
+	public boolean hasValidators() {
+		return mETag != null || mLastModified != null;
+	}
+
+	/**
+	 * @return true if the tile should be revalidated; tiles of unknown age always are
+	 */
+	public boolean isStale(final long now) {
+		return now >= mExpires;
+	}
+
+	/**
+	 * Takes the validators of the cached copy that a 304 response did not repeat.
+	 */
+	public void inheritValidators(final TileMetadata cached) {
+		if(mETag == null) {
+			mETag = cached.mETag;
+		}
+		if(mLastModified == null) {
+			mLastModified = cached.mLastModified;
+		}
+	}
+
+	/**
+	 * Metadata of a tile cached without its response headers: stale, with the time it was cached
+	 * as Last-Modified, so that its first view revalidates it with a conditional request.
+	 *
+	 * @param cachedAt Wall-clock time in ms the tile was cached at, 0 if unknown
+	 */
+	public static TileMetadata forUnknownAge(final long cachedAt) {
+		final TileMetadata metadata = new TileMetadata();
+		if(cachedAt > 0) {
+			// SimpleDateFormat is not thread safe
+			final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			metadata.mLastModified = format.format(new Date(cachedAt));
+		}
+		return metadata;
+	}
+
+	public String encode() {
+		return nullToEmpty(mETag) + SEPARATOR + nullToEmpty(mLastModified) + SEPARATOR + mExpires;
+	}
+
+	/**
+	 * @return The decoded metadata; empty, and so stale, if the value is missing or malformed
+	 */
+	public static TileMetadata decode(final String value) {
+		final TileMetadata metadata = new TileMetadata();
+		if(value == null) {
+			return metadata;
+		}
+		final String[] parts = value.split(SEPARATOR, -1);
+		if(parts.length != 3) {
+			return metadata;
+		}
+		metadata.mETag = emptyToNull(parts[0]);
+		metadata.mLastModified = emptyToNull(parts[1]);
+		try {
+			metadata.mExpires = Long.parseLong(parts[2]);
+		} catch(NumberFormatException e) {
+			metadata.mExpires = 0;
+		}
+		return metadata;
+	}
+
+	private static String nullToEmpty(final String value) {
+		return value != null ? value : "";
+	}
+
+	private static String emptyToNull(final String value) {
+		return value.length() == 0 ? null : value;
+	}
+}
@@ -0,0 +1,130 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import com.android.ch3d.tilemap.model.TileKey;
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped pack of encoded tiles in a single file. Tiles are stored in Z-order
+ * (Morton order of x and y within each provider and zoom), so the tiles of a viewport sit close
+ * together in the file.
+ * <p/>
+ * Layout, big-endian: magic, version and entry count as ints, then the index of entries sorted by
+ * Z-order key, each a long key, an int data offset and an int data length, then the tile data in
+ * the same order. Use {@link TilePackWriter} to build one.
+ */
+public class TilePack {
+
+	static final int MAGIC = 0x54504B31; // "TPK1"
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 12;
+
+	static final int ENTRY_SIZE = 16;
+
+	private final MappedByteBuffer mBuffer;
+
+	private final int mCount;
+
+	private TilePack(final MappedByteBuffer buffer) throws IOException {
+		mBuffer = buffer;
+		if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a tile pack");
+		}
+		mCount = buffer.getInt(8);
+		if(mCount < 0 || HEADER_SIZE + (long) mCount * ENTRY_SIZE > buffer.capacity()) {
+			throw new IOException("Corrupt tile pack index");
+		}
+	}
+
+	/**
+	 * Maps the pack into memory. The file can be closed right away, the mapping stays valid.
+	 */
+	public static TilePack open(final File file) throws IOException {
+		RandomAccessFile randomAccessFile = null;
+		try {
+			randomAccessFile = new RandomAccessFile(file, "r");
+			final FileChannel channel = randomAccessFile.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			return new TilePack(buffer);
+		} finally {
+			Utils.close(randomAccessFile);
+		}
+	}
+
+	/**
+	 * Returns the encoded tile as a view of the mapped file, without copying. Safe to call from
+	 * any thread.
+	 *
+	 * @param tileKey Packed {@link TileKey} of the tile
+	 * @return A buffer positioned at the tile's first byte and limited to its last, or null if the
+	 * pack does not hold the tile or its index entry points outside the file
+	 */
+	public ByteBuffer getTile(final long tileKey) {
+		final long key = sortKey(tileKey);
+		int low = 0;
+		int high = mCount - 1;
+		while(low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+			final long middleKey = mBuffer.getLong(entry) ^ Long.MIN_VALUE;
+			if(middleKey < key) {
+				low = middle + 1;
+			} else if(middleKey > key) {
+				high = middle - 1;
+			} else {
+				final int offset = mBuffer.getInt(entry + 8);
+				final int length = mBuffer.getInt(entry + 12);
+				if(offset < 0 || length < 0 || (long) offset + length > mBuffer.capacity()) {
+					// truncated or corrupt pack, the tile is loaded as if it was not packed
+					return null;
+				}
+				final ByteBuffer tile = mBuffer.duplicate();
+				tile.limit(offset + length).position(offset);
+				return tile;
+			}
+		}
+		return null;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return The tile key reordered so that keys sort by provider, zoom and then Z-order, with the
+	 * sign bit flipped so signed comparison orders them as unsigned values
+	 */
+	private static long sortKey(final long tileKey) {
+		return zOrderKey(tileKey) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * @return Provider and zoom in the top 12 bits, x and y interleaved in the low 52
+	 */
+	static long zOrderKey(final long tileKey) {
+		return (tileKey & 0xFFF0000000000000L) | (spread(TileKey.x(tileKey)) << 1) | spread(TileKey.y(tileKey));
+	}
+
+	/**
+	 * Spreads the low 26 bits of value over the even bits of a long.
+	 */
+	private static long spread(final int value) {
+		long bits = value & 0x3FFFFFFL;
+		bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+		bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+		bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		bits = (bits | (bits << 2)) & 0x3333333333333333L;
+		bits = (bits | (bits << 1)) & 0x5555555555555555L;
+		return bits;
+	}
+}
@@ -0,0 +1,95 @@
+package com.android.ch3d.tilemap.util.cache;
+
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a {@link TilePack}. Tiles may be added in any order; they are written in Z-order.
+ */
+public class TilePackWriter {
+
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+
+	private long mDataSize;
+
+	/**
+	 * @param tileKey Packed {@link com.android.ch3d.tilemap.model.TileKey} of the tile
+	 * @param data    Encoded tile, e.g. PNG bytes
+	 */
+	public void add(final long tileKey, final byte[] data) {
+		mEntries.add(new Entry(TilePack.zOrderKey(tileKey), data));
+		mDataSize += data.length;
+	}
+
+	/**
+	 * Writes the pack to a temporary file and renames it over the target, so readers never map a
+	 * half-written pack.
+	 */
+	public void write(final File file) throws IOException {
+		final long size = TilePack.HEADER_SIZE + (long) mEntries.size() * TilePack.ENTRY_SIZE + mDataSize;
+		if(size > Integer.MAX_VALUE) {
+			throw new IOException("Tile pack would exceed 2GB");
+		}
+		Collections.sort(mEntries, new Comparator<Entry>() {
+			@Override
+			public int compare(final Entry lhs, final Entry rhs) {
+				final long left = lhs.mKey ^ Long.MIN_VALUE;
+				final long right = rhs.mKey ^ Long.MIN_VALUE;
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+
+		final File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(TilePack.MAGIC);
+			out.writeInt(TilePack.VERSION);
+			out.writeInt(mEntries.size());
+			int offset = TilePack.HEADER_SIZE + mEntries.size() * TilePack.ENTRY_SIZE;
+			long previousKey = 0;
+			for(int i = 0; i < mEntries.size(); i++) {
+				final Entry entry = mEntries.get(i);
+				if(i > 0 && entry.mKey == previousKey) {
+					throw new IOException("Duplicate tile in pack");
+				}
+				previousKey = entry.mKey;
+				out.writeLong(entry.mKey);
+				out.writeInt(offset);
+				out.writeInt(entry.mData.length);
+				offset += entry.mData.length;
+			}
+			for(Entry entry : mEntries) {
+				out.write(entry.mData);
+			}
+			out.close();
+			out = null;
+			if(!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		} finally {
+			Utils.close(out);
+			tempFile.delete();
+		}
+	}
+
+	private static class Entry {
+		final long mKey;
+
+		final byte[] mData;
+
+		Entry(final long key, final byte[] data) {
+			mKey = key;
+			mData = data;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.android.ch3d.tilemap.util.downloader;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps a bounded number of fixed-size byte arrays around so that concurrent downloads copy through
+ * reused buffers instead of allocating a new one per tile.
+ */
+public class BufferPool {
+
+	private final ArrayDeque<byte[]> mBuffers;
+
+	private final int mBufferSize;
+
+	private final int mMaxPooled;
+
+	public BufferPool(final int bufferSize, final int maxPooled) {
+		mBufferSize = bufferSize;
+		mMaxPooled = maxPooled;
+		mBuffers = new ArrayDeque<byte[]>(maxPooled);
+	}
+
+	public byte[] acquire() {
+		synchronized(mBuffers) {
+			final byte[] buffer = mBuffers.pollFirst();
+			if(buffer != null) {
+				return buffer;
+			}
+		}
+		return new byte[mBufferSize];
+	}
+
+	public void release(final byte[] buffer) {
+		if(buffer == null || buffer.length != mBufferSize) {
+			return;
+		}
+		synchronized(mBuffers) {
+			if(mBuffers.size() < mMaxPooled) {
+				mBuffers.addFirst(buffer);
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+}
@@ -0,0 +1,77 @@
+package com.android.ch3d.tilemap.util.downloader;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-throughput counters for tile downloads. Time spent blocked in the response stream is
+ * accounted separately from time spent handing bytes to the sink, so the two rates show whether
+ * fetches are limited by the network or by local work.
+ */
+public class DownloadStats {
+
+	private final AtomicLong mDownloads = new AtomicLong();
+
+	private final AtomicLong mFailures = new AtomicLong();
+
+	private final AtomicLong mBytes = new AtomicLong();
+
+	private final AtomicLong mReadNanos = new AtomicLong();
+
+	private final AtomicLong mWriteNanos = new AtomicLong();
+
+	void onDownload(final long bytes, final long readNanos, final long writeNanos, final boolean success) {
+		if(success) {
+			mDownloads.incrementAndGet();
+		} else {
+			mFailures.incrementAndGet();
+		}
+		mBytes.addAndGet(bytes);
+		mReadNanos.addAndGet(readNanos);
+		mWriteNanos.addAndGet(writeNanos);
+	}
+
+	public long getDownloads() {
+		return mDownloads.get();
+	}
+
+	public long getFailures() {
+		return mFailures.get();
+	}
+
+	public long getBytes() {
+		return mBytes.get();
+	}
+
+	/**
+	 * @return Bytes per second while waiting on the response stream
+	 */
+	public long getNetworkBytesPerSecond() {
+		return perSecond(mBytes.get(), mReadNanos.get());
+	}
+
+	/**
+	 * @return Bytes per second while writing to the sink
+	 */
+	public long getSinkBytesPerSecond() {
+		return perSecond(mBytes.get(), mWriteNanos.get());
+	}
+
+	public void reset() {
+		mDownloads.set(0);
+		mFailures.set(0);
+		mBytes.set(0);
+		mReadNanos.set(0);
+		mWriteNanos.set(0);
+	}
+
+	private static long perSecond(final long bytes, final long nanos) {
+		return nanos == 0 ? 0 : (long) ((double) bytes * TimeUnit.SECONDS.toNanos(1) / nanos);
+	}
+
+	@Override
+	public String toString() {
+		return "DownloadStats{downloads=" + getDownloads() + ", failures=" + getFailures() + ", bytes=" + getBytes()
+				+ ", network=" + getNetworkBytesPerSecond() / 1024 + "KB/s, sink=" + getSinkBytesPerSecond() / 1024 + "KB/s}";
+	}
+}
@@ -2,19 +2,22 @@ package com.android.ch3d.tilemap.util.downloader;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Process;
 import android.util.Log;
 
 import com.android.ch3d.tilemap.BuildConfig;
+import com.android.ch3d.tilemap.util.DiskLruCache;
 import com.android.ch3d.tilemap.util.ImageUtils;
+import com.android.ch3d.tilemap.util.cache.ImageCacheSimple;
+import com.android.ch3d.tilemap.util.cache.TileMetadata;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-
-import static com.android.ch3d.tilemap.util.Utils.close;
-import static com.android.ch3d.tilemap.util.cache.ImageCacheBase.hashKeyForDisk;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Created by Ch3D on 24.04.2015.
@@ -23,18 +26,62 @@ public class ImageDownloader extends ImageDownloaderBase {
 
 	private static final String TAG = ImageDownloader.class.getSimpleName();
 
+	private static final int DISK_CACHE_INDEX = 0;
+
+	private static final int METADATA_INDEX = ImageCacheSimple.DISK_CACHE_METADATA_INDEX;
+
+	// the disk cache is unavailable or the entry is being written by another load
+	private static final int DOWNLOAD_NO_DISK_CACHE = -1;
+
+	// stale tiles are revalidated one at a time, behind the loads of the visible tiles
+	private static final ExecutorService sRefreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					runnable.run();
+				}
+			}, TAG + "-refresh");
+		}
+	});
+
+	// urls with a refresh queued or running
+	private static final ConcurrentHashMap<String, Boolean> sPendingRefreshes = new ConcurrentHashMap<String, Boolean>();
+
+	// large enough for most 256px raster tiles, so the response buffer rarely grows
+	private static final int RESPONSE_BUFFER_SIZE = 32 * 1024;
+
 	private final Context mContext;
 
 	private final int mImgSize;
 
+	private volatile boolean mDecodeFromResponse = true;
+
 	public ImageDownloader(final Context context, final int imgSize) {
 		super(context);
 		mContext = context;
 		mImgSize = imgSize;
 	}
 
-	private File getFileForKey(final String key) {
-		return new File(getImageCache().getParams().diskCacheDir + File.separator + key);
+	/**
+	 * Chooses whether downloaded tiles are decoded from the response in memory and written to the
+	 * disk cache afterwards, or written first and decoded from the disk cache.
+	 */
+	public void setDecodeFromResponse(boolean decodeFromResponse) {
+		mDecodeFromResponse = decodeFromResponse;
+	}
+
+	@Override
+	protected Bitmap processBitmap(long key, String url, boolean prefetch) {
+		if(mDecodeFromResponse) {
+			if(BuildConfig.DEBUG) {
+				Log.d(TAG, "processing bitmap = " + url);
+			}
+			return downloadAndDecode(url, prefetch, true);
+		}
+		return processBitmap(url);
 	}
 
 	@Override
@@ -42,27 +89,158 @@ public class ImageDownloader extends ImageDownloaderBase {
 		if(BuildConfig.DEBUG) {
 			Log.d(TAG, "processing bitmap = " + url);
 		}
-		synchronized(mDiskCacheLock) {
-			final String key = hashKeyForDisk(url);
-			FileOutputStream outputStream = null;
-			FileInputStream inputStream = null;
-			try {
-				final File file = getFileForKey(key);
-				file.getParentFile().mkdirs();
-				outputStream = new FileOutputStream(file);
-				if(downloadUrlToStream(url, outputStream)) {
-					inputStream = new FileInputStream(file);
-					return ImageUtils.decodeSampledBitmapFromDescriptor(inputStream.getFD(), mImgSize, mImgSize, getImageCache());
-				}
-			} catch(FileNotFoundException e) {
-				Log.e(TAG, "processBitmap", e);
-			} catch(IOException e) {
-				Log.e(TAG, "processBitmap", e);
-			} finally {
-				close(outputStream);
-				close(inputStream);
+		final Lock lock = mKeyLocks.lock(url);
+		try {
+			final int result = downloadToDiskCacheLocked(url, null, null);
+			if(result != DOWNLOAD_NO_DISK_CACHE) {
+				return result == DOWNLOAD_OK ? getImageCache().getBitmapFromDiskCache(url) : null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// nothing to download into, still show the tile and only skip the disk write
+		return downloadAndDecode(url, false, false);
+	}
+
+	/**
+	 * @param persist Whether to queue the downloaded bytes for the disk cache
+	 */
+	private Bitmap downloadAndDecode(final String url, final boolean prefetch, final boolean persist) {
+		final ResponseBuffer response = new ResponseBuffer(RESPONSE_BUFFER_SIZE);
+		final TileMetadata metadata = new TileMetadata();
+		final int result = downloadUrlToStream(url, null, metadata, new BodySink() {
+			@Override
+			public OutputStream open() {
+				return response;
 			}
+		}, null);
+		if(result != DOWNLOAD_OK) {
 			return null;
 		}
+		final Bitmap bitmap = ImageUtils.decodeTileFromBytes(response.getBuffer(), response.size(), mImgSize, mImgSize,
+		                                                     getImageCache());
+		if(bitmap != null && persist) {
+			getImageCache().addToDiskCacheAsync(url, response.getBuffer(), response.size(), metadata, prefetch);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Downloads the tile into the disk cache without decoding it.
+	 *
+	 * @param jobStats Counters the download is recorded in besides the global ones, or null
+	 * @return true if the tile was downloaded and committed
+	 */
+	public boolean downloadToDiskCache(String url, DownloadStats jobStats) {
+		final Lock lock = mKeyLocks.lock(url);
+		try {
+			return downloadToDiskCacheLocked(url, jobStats);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the tile is in the tile pack or the disk cache
+	 */
+	public boolean isInDiskCache(long key, String url) {
+		return getImageCache().isInDiskCache(key, url);
+	}
+
+	/**
+	 * Serves the stale tile as it is and revalidates it in the background; a changed tile is
+	 * published to the memory cache once downloaded.
+	 */
+	@Override
+	protected void onDiskCacheHit(final long key, final String url, final int x, final int y) {
+		final TileMetadata metadata = getImageCache().getDiskCacheMetadata(url);
+		if(metadata == null || !metadata.isStale(System.currentTimeMillis())) {
+			return;
+		}
+		if(sPendingRefreshes.putIfAbsent(url, Boolean.TRUE) != null) {
+			return;
+		}
+		sRefreshExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh(key, url, x, y);
+				} finally {
+					sPendingRefreshes.remove(url);
+				}
+			}
+		});
+	}
+
+	private void refresh(final long key, final String url, final int x, final int y) {
+		final int result;
+		final Lock lock = mKeyLocks.lock(url);
+		try {
+			final TileMetadata cached = getImageCache().getDiskCacheMetadata(url);
+			if(cached == null || !cached.isStale(System.currentTimeMillis())) {
+				// evicted, or refreshed by a load that got here first
+				return;
+			}
+			result = downloadToDiskCacheLocked(url, cached, null);
+		} finally {
+			lock.unlock();
+		}
+		if(result == DOWNLOAD_OK) {
+			final Bitmap bitmap = getImageCache().getBitmapFromDiskCache(url);
+			if(bitmap != null) {
+				publishRefreshedTile(key, x, y, bitmap);
+			}
+		}
+	}
+
+	private boolean downloadToDiskCacheLocked(String url, DownloadStats jobStats) {
+		return downloadToDiskCacheLocked(url, null, jobStats) == DOWNLOAD_OK;
+	}
+
+	/**
+	 * Downloads the tile into its disk cache entry, conditionally if the validators of the cached
+	 * copy are given. A 304 only rewrites the metadata of the entry.
+	 *
+	 * @return {@link #DOWNLOAD_NO_DISK_CACHE} without downloading if no editor could be opened
+	 */
+	private int downloadToDiskCacheLocked(String url, TileMetadata validators, DownloadStats jobStats) {
+		final DiskLruCache.Editor editor = getImageCache().editDiskCache(url);
+		if(editor == null) {
+			return DOWNLOAD_NO_DISK_CACHE;
+		}
+		final TileMetadata metadata = new TileMetadata();
+		int result = DOWNLOAD_FAILED;
+		boolean committed = false;
+		try {
+			result = downloadUrlToStream(url, validators, metadata, new BodySink() {
+				@Override
+				public OutputStream open() throws IOException {
+					return editor.newOutputStream(DISK_CACHE_INDEX);
+				}
+			}, jobStats);
+			if(result != DOWNLOAD_FAILED) {
+				if(result == DOWNLOAD_NOT_MODIFIED) {
+					metadata.inheritValidators(validators);
+				}
+				editor.set(METADATA_INDEX, metadata.encode());
+				editor.commit();
+				committed = true;
+			}
+		} catch(IOException e) {
+			Log.e(TAG, "downloadToDiskCache", e);
+		} finally {
+			if(!committed) {
+				abortQuietly(editor);
+			}
+		}
+		return committed ? result : DOWNLOAD_FAILED;
+	}
+
+	private static void abortQuietly(final DiskLruCache.Editor editor) {
+		try {
+			editor.abort();
+		} catch(IOException e) {
+			Log.e(TAG, "abortQuietly", e);
+		}
 	}
 }
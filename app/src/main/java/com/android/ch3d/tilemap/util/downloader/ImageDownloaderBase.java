@@ -3,14 +3,20 @@ package com.android.ch3d.tilemap.util.downloader;
 import android.content.Context;
 import android.util.Log;
 
+import com.android.ch3d.tilemap.BuildConfig;
 import com.android.ch3d.tilemap.util.ImageWorker;
+import com.android.ch3d.tilemap.util.StripedLock;
+import com.android.ch3d.tilemap.util.cache.TileMetadata;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import static com.android.ch3d.tilemap.util.Utils.close;
 
@@ -21,40 +27,271 @@ public abstract class ImageDownloaderBase extends ImageWorker {
 
 	protected static final int BUFFER_SIZE = 8 * 1024;
 
-	protected final Object mDiskCacheLock = new Object();
+	private static final int MAX_POOLED_BUFFERS = 8;
+
+	private static final int STATS_LOG_INTERVAL = 50;
+
+	private static final BufferPool sBufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	private static final DownloadStats sDownloadStats = new DownloadStats();
+
+	private static final int KEY_LOCK_STRIPES = 64;
+
+	// tile servers ask clients to keep to a couple of connections per host
+	private static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+	// most shard hosts a provider spreads its tiles over, see setHostShards()
+	private static final int MAX_HOST_SHARDS = 4;
+
+	private static final ConcurrentHashMap<String, Semaphore> sHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	static {
+		// keep idle connections for reuse. http.maxConnections caps the idle connections of the
+		// whole pool, not of a host, and is read once when the pool is created, so it is sized for
+		// every shard host being open at MAX_CONNECTIONS_PER_HOST; the per-host limit is enforced
+		// by sHostPermits
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(MAX_HOST_SHARDS * MAX_CONNECTIONS_PER_HOST));
+	}
+
+	// host used in tile urls and the hosts that serve the same tiles, see setHostShards()
+	private volatile String mShardedHost;
+
+	private volatile String[] mHostShards;
+
+	private int mNextShard;
+
+	protected final StripedLock mKeyLocks = new StripedLock(KEY_LOCK_STRIPES);
 
 	private static final String TAG = ImageDownloaderBase.class.getSimpleName();
 
+	public static final int DOWNLOAD_FAILED = 0;
+
+	public static final int DOWNLOAD_OK = 1;
+
+	public static final int DOWNLOAD_NOT_MODIFIED = 2;
+
+	// freshness of tiles whose response carries no hint at all
+	private static final long DEFAULT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+	/**
+	 * Destination of a response body, opened only once a full response arrives so that a 304 or a
+	 * failed request leaves it untouched.
+	 */
+	protected interface BodySink {
+		OutputStream open() throws IOException;
+	}
+
 	public ImageDownloaderBase(final Context context) {
 		super(context);
 	}
 
-	public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+	public static DownloadStats getDownloadStats() {
+		return sDownloadStats;
+	}
+
+	/**
+	 * Spreads requests for urls on the given host round-robin over the shard hosts, multiplying the
+	 * per-host connection limit. Urls, and so cache keys, keep naming the original host.
+	 */
+	public void setHostShards(String host, String... shards) {
+		if(shards != null && shards.length > MAX_HOST_SHARDS) {
+			Log.w(TAG, "setHostShards - " + shards.length + " shards, idle connections are kept for " + MAX_HOST_SHARDS);
+		}
+		mHostShards = shards;
+		mShardedHost = host;
+	}
+
+	/**
+	 * Copies the response body to the stream through a pooled buffer. The stream is written as is,
+	 * so callers should pass an unbuffered sink such as a disk cache entry.
+	 */
+	public boolean downloadUrlToStream(String urlString, final OutputStream outputStream) {
+		try {
+			return downloadUrlToStream(urlString, null, null, new BodySink() {
+				@Override
+				public OutputStream open() {
+					return outputStream;
+				}
+			}, null) == DOWNLOAD_OK;
+		} finally {
+			close(outputStream);
+		}
+	}
+
+	/**
+	 * Downloads the url, conditionally if validators of a cached copy are given.
+	 *
+	 * @param validators  Validators of the cached copy, or null for a plain request
+	 * @param outMetadata Receives the validators and expiry of the response, or null
+	 * @param jobStats    Counters the download is recorded in besides the global ones, or null
+	 * @return {@link #DOWNLOAD_OK} once the body is written to the sink and the sink is closed,
+	 * {@link #DOWNLOAD_NOT_MODIFIED} for a 304, or {@link #DOWNLOAD_FAILED}
+	 */
+	protected int downloadUrlToStream(String urlString, TileMetadata validators, TileMetadata outMetadata, BodySink sink,
+	                                  DownloadStats jobStats) {
+		final URL url;
+		try {
+			url = new URL(shardUrl(urlString));
+		} catch(final IOException e) {
+			Log.e(TAG, "downloadUrlToStream", e);
+			return DOWNLOAD_FAILED;
+		}
+		final Semaphore permits = getHostPermits(url.getHost());
+		try {
+			permits.acquire();
+		} catch(InterruptedException e) {
+			// the load was cancelled
+			Thread.currentThread().interrupt();
+			return DOWNLOAD_FAILED;
+		}
+		try {
+			return downloadUrlToStream(url, validators, outMetadata, sink, jobStats);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private int downloadUrlToStream(URL url, TileMetadata validators, TileMetadata outMetadata, BodySink sink,
+	                                DownloadStats jobStats) {
 		HttpURLConnection urlConnection = null;
-		BufferedOutputStream out = null;
-		BufferedInputStream in = null;
+		InputStream in = null;
+		OutputStream outputStream = null;
+		final byte[] buffer = sBufferPool.acquire();
+		long bytes = 0;
+		long readNanos = 0;
+		long writeNanos = 0;
+		boolean success = false;
+		int result = DOWNLOAD_FAILED;
 
 		try {
-			final URL url = new URL(urlString);
 			urlConnection = (HttpURLConnection) url.openConnection();
-			in = new BufferedInputStream(urlConnection.getInputStream(), BUFFER_SIZE);
-			out = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+			if(validators != null) {
+				if(validators.getETag() != null) {
+					urlConnection.setRequestProperty("If-None-Match", validators.getETag());
+				}
+				if(validators.getLastModified() != null) {
+					urlConnection.setRequestProperty("If-Modified-Since", validators.getLastModified());
+				}
+			}
+			if(urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+				readMetadata(urlConnection, outMetadata);
+				result = DOWNLOAD_NOT_MODIFIED;
+			} else {
+				in = urlConnection.getInputStream();
+				outputStream = sink.open();
 
-			int b;
-			while((b = in.read()) != -1) {
-				out.write(b);
+				int count;
+				while(true) {
+					final long readStart = System.nanoTime();
+					count = in.read(buffer);
+					final long writeStart = System.nanoTime();
+					readNanos += writeStart - readStart;
+					if(count == -1) {
+						break;
+					}
+					outputStream.write(buffer, 0, count);
+					writeNanos += System.nanoTime() - writeStart;
+					bytes += count;
+				}
+				outputStream.close();
+				readMetadata(urlConnection, outMetadata);
+				result = DOWNLOAD_OK;
 			}
-			return true;
+			success = true;
 		} catch(final IOException e) {
 			Log.e(TAG, "downloadUrlToStream", e);
 		} finally {
-			if(urlConnection != null) {
+			// a fully read and closed response hands its connection back to the keep-alive pool,
+			// only broken ones are dropped
+			if(!success && urlConnection != null) {
 				urlConnection.disconnect();
 			}
-			close(out);
+			close(outputStream);
 			close(in);
+			sBufferPool.release(buffer);
+			sDownloadStats.onDownload(bytes, readNanos, writeNanos, success);
+			if(jobStats != null) {
+				jobStats.onDownload(bytes, readNanos, writeNanos, success);
+			}
 		}
-		return false;
+		if(BuildConfig.DEBUG && (sDownloadStats.getDownloads() + sDownloadStats.getFailures()) % STATS_LOG_INTERVAL == 0) {
+			Log.d(TAG, sDownloadStats + ", " + mKeyLocks);
+		}
+		return result;
 	}
 
+	/**
+	 * Takes the validators and works out the expiry: Cache-Control max-age first, then Expires,
+	 * then a tenth of the time since Last-Modified, then a default.
+	 */
+	private static void readMetadata(HttpURLConnection urlConnection, TileMetadata metadata) {
+		if(metadata == null) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		metadata.setETag(urlConnection.getHeaderField("ETag"));
+		metadata.setLastModified(urlConnection.getHeaderField("Last-Modified"));
+
+		final String cacheControl = urlConnection.getHeaderField("Cache-Control");
+		if(cacheControl != null) {
+			for(String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+				directive = directive.trim();
+				if(directive.equals("no-cache") || directive.equals("no-store")) {
+					metadata.setExpires(now);
+					return;
+				}
+				if(directive.startsWith("max-age=")) {
+					try {
+						metadata.setExpires(now + TimeUnit.SECONDS.toMillis(Long.parseLong(directive.substring(8).trim())));
+						return;
+					} catch(NumberFormatException e) {
+						// fall through to the other headers
+					}
+				}
+			}
+		}
+		final long expiration = urlConnection.getExpiration();
+		if(expiration > 0) {
+			metadata.setExpires(expiration);
+			return;
+		}
+		final long lastModified = urlConnection.getLastModified();
+		if(lastModified > 0 && lastModified < now) {
+			metadata.setExpires(now + (now - lastModified) / 10);
+			return;
+		}
+		metadata.setExpires(now + DEFAULT_MAX_AGE_MS);
+	}
+
+	private String shardUrl(String urlString) {
+		final String host = mShardedHost;
+		final String[] shards = mHostShards;
+		if(host == null || shards == null || shards.length == 0) {
+			return urlString;
+		}
+		final int hostStart = urlString.indexOf("://") + 3;
+		if(hostStart < 3 || !urlString.startsWith(host, hostStart)
+				|| (urlString.length() > hostStart + host.length() && urlString.charAt(hostStart + host.length()) != '/')) {
+			return urlString;
+		}
+		final int shard;
+		synchronized(this) {
+			shard = mNextShard;
+			mNextShard = (shard + 1) % shards.length;
+		}
+		return urlString.substring(0, hostStart) + shards[shard] + urlString.substring(hostStart + host.length());
+	}
+
+	private static Semaphore getHostPermits(String host) {
+		Semaphore permits = sHostPermits.get(host);
+		if(permits == null) {
+			final Semaphore created = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+			permits = sHostPermits.putIfAbsent(host, created);
+			if(permits == null) {
+				permits = created;
+			}
+		}
+		return permits;
+	}
 }
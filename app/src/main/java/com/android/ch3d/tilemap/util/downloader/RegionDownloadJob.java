@@ -0,0 +1,359 @@
+package com.android.ch3d.tilemap.util.downloader;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.ch3d.tilemap.provider.TilesProvider;
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads every tile of a bounding box over a range of zooms into the disk cache, so the region
+ * can be viewed offline. Tiles are visited in a fixed order (zoom, row, column) and the index
+ * below which every tile is done is saved to a progress file, so a job started again with the
+ * same region resumes where the previous one stopped. Tiles already cached are skipped, failed
+ * ones keep the mark from moving past them so the next run retries them.
+ * <p/>
+ * The tiles go to the LRU disk cache, so a region larger than the cache evicts its own tiles; see
+ * {@link com.android.ch3d.tilemap.model.TilesManager#newRegionDownloadJob}.
+ * <p/>
+ * {@link #run()} blocks, call it on a background thread.
+ */
+public class RegionDownloadJob implements Runnable {
+
+	private static final String TAG = RegionDownloadJob.class.getSimpleName();
+
+	private static final String KEY_REGION = "region";
+
+	private static final String KEY_NEXT_TILE = "next";
+
+	private static final long PERSIST_INTERVAL_MS = 1000;
+
+	public interface Listener {
+		/**
+		 * Called from the download threads after each tile.
+		 *
+		 * @param done           Tiles handled so far, skipped and failed ones included
+		 * @param bytesPerSecond Download throughput of this run
+		 */
+		void onProgress(long done, long total, long skipped, long failed, double bytesPerSecond);
+
+		/**
+		 * @param completed false if the job was cancelled or interrupted, or if tiles failed
+		 */
+		void onFinished(boolean completed);
+	}
+
+	private final TilesProvider mTilesProvider;
+
+	private final ImageDownloader mDownloader;
+
+	private final int mMinZoom;
+
+	private final int mMaxZoom;
+
+	private final double mNorth;
+
+	private final double mWest;
+
+	private final double mSouth;
+
+	private final double mEast;
+
+	private final int mParallelism;
+
+	private final File mProgressFile;
+
+	private final DownloadStats mStats = new DownloadStats();
+
+	private final AtomicLong mDone = new AtomicLong();
+
+	private final AtomicLong mSkipped = new AtomicLong();
+
+	private final AtomicLong mFailed = new AtomicLong();
+
+	// indices finished out of order, above the persisted low-water mark
+	private final TreeSet<Long> mFinished = new TreeSet<Long>();
+
+	private long mNextUnfinished;
+
+	// lowest index that failed in this run, where the next run has to start
+	private long mFirstFailed = Long.MAX_VALUE;
+
+	private long mLastPersistTime;
+
+	private long mStartTime;
+
+	private volatile boolean mCancelled;
+
+	private volatile ExecutorService mExecutor;
+
+	private Listener mListener;
+
+	/**
+	 * @param parallelism  Number of tiles downloaded at the same time
+	 * @param progressFile Where progress is saved; deleted once the job completes
+	 */
+	public RegionDownloadJob(final TilesProvider tilesProvider, final ImageDownloader downloader, final double north,
+	                         final double west, final double south, final double east, final int minZoom,
+	                         final int maxZoom, final int parallelism, final File progressFile) {
+		mTilesProvider = tilesProvider;
+		mDownloader = downloader;
+		mNorth = north;
+		mWest = west;
+		mSouth = south;
+		mEast = east;
+		mMinZoom = Math.max(minZoom, tilesProvider.getMinZoom());
+		mMaxZoom = Math.min(maxZoom, tilesProvider.getMaxZoom());
+		mParallelism = parallelism;
+		mProgressFile = progressFile;
+	}
+
+	public void setListener(final Listener listener) {
+		mListener = listener;
+	}
+
+	public void cancel() {
+		mCancelled = true;
+		final ExecutorService executor = mExecutor;
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return Number of tiles in the region over the job's zoom range
+	 */
+	public long getTileCount() {
+		long count = 0;
+		for(int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+			count += (long) columns(zoom) * rows(zoom);
+		}
+		return count;
+	}
+
+	@Override
+	public void run() {
+		final long total = getTileCount();
+		final long start = loadProgress();
+		mNextUnfinished = start;
+		mDone.set(start);
+		mStartTime = SystemClock.elapsedRealtime();
+		mLastPersistTime = mStartTime;
+
+		final Semaphore permits = new Semaphore(mParallelism * 2);
+		mExecutor = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, TAG);
+			}
+		});
+		if(mCancelled) {
+			mExecutor.shutdownNow();
+		}
+
+		boolean completed = false;
+		try {
+			long index = 0;
+			for(int zoom = mMinZoom; zoom <= mMaxZoom && !mCancelled; zoom++) {
+				final int firstColumn = tileX(mWest, zoom);
+				final int firstRow = tileY(mNorth, zoom);
+				final long tiles = (long) columns(zoom) * rows(zoom);
+				if(index + tiles <= start) {
+					index += tiles;
+					continue;
+				}
+				final int originX = mTilesProvider.getOriginX(zoom);
+				final int originY = mTilesProvider.getOriginY(zoom);
+				for(int row = 0; row < rows(zoom) && !mCancelled; row++) {
+					for(int column = 0; column < columns(zoom) && !mCancelled; column++, index++) {
+						if(index < start) {
+							continue;
+						}
+						permits.acquire();
+						final int x = firstColumn + column - originX;
+						final int y = firstRow + row - originY;
+						final long key = mTilesProvider.getTileKey(zoom, x, y);
+						final String url = mTilesProvider.getTile(zoom, x, y).getImgUrl();
+						final long tileIndex = index;
+						mExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									downloadTile(tileIndex, key, url, total);
+								} finally {
+									permits.release();
+								}
+							}
+						});
+					}
+				}
+			}
+			mExecutor.shutdown();
+			mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			completed = !mCancelled && mFailed.get() == 0;
+		} catch(InterruptedException e) {
+			mExecutor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} catch(RejectedExecutionException e) {
+			// cancelled while tiles were being queued
+		}
+
+		if(completed) {
+			mProgressFile.delete();
+		} else {
+			persistProgress(true);
+		}
+		if(mListener != null) {
+			mListener.onFinished(completed);
+		}
+	}
+
+	private void downloadTile(final long index, final long key, final String url, final long total) {
+		if(mCancelled) {
+			return;
+		}
+		if(mDownloader.isInDiskCache(key, url)) {
+			mSkipped.incrementAndGet();
+		} else if(!mDownloader.downloadToDiskCache(url, mStats)) {
+			if(mCancelled) {
+				// interrupted by cancel(), leave the tile for the next run
+				return;
+			}
+			mFailed.incrementAndGet();
+			synchronized(mFinished) {
+				mFirstFailed = Math.min(mFirstFailed, index);
+			}
+		}
+		final long done = mDone.incrementAndGet();
+		onTileFinished(index);
+
+		if(mListener != null) {
+			final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+			final double bytesPerSecond = elapsed > 0 ? mStats.getBytes() * 1000.0 / elapsed : 0;
+			mListener.onProgress(done, total, mSkipped.get(), mFailed.get(), bytesPerSecond);
+		}
+	}
+
+	private void onTileFinished(final long index) {
+		synchronized(mFinished) {
+			mFinished.add(index);
+			while(!mFinished.isEmpty() && mFinished.first() == mNextUnfinished) {
+				mFinished.pollFirst();
+				mNextUnfinished++;
+			}
+		}
+		persistProgress(false);
+	}
+
+	private long loadProgress() {
+		if(!mProgressFile.isFile()) {
+			return 0;
+		}
+		final Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(mProgressFile);
+			properties.load(in);
+			if(!describeRegion().equals(properties.getProperty(KEY_REGION))) {
+				// progress of another region
+				return 0;
+			}
+			return Long.parseLong(properties.getProperty(KEY_NEXT_TILE, "0"));
+		} catch(IOException e) {
+			Log.e(TAG, "loadProgress", e);
+		} catch(NumberFormatException e) {
+			Log.e(TAG, "loadProgress", e);
+		} finally {
+			Utils.close(in);
+		}
+		return 0;
+	}
+
+	/**
+	 * Saves the low-water mark, or the first failed tile if lower, at most once per interval unless forced. Written to a temporary
+	 * file and renamed, so a crash never leaves a truncated progress file.
+	 */
+	private void persistProgress(final boolean force) {
+		final long nextUnfinished;
+		synchronized(mFinished) {
+			final long now = SystemClock.elapsedRealtime();
+			if(!force && now - mLastPersistTime < PERSIST_INTERVAL_MS) {
+				return;
+			}
+			mLastPersistTime = now;
+			nextUnfinished = Math.min(mNextUnfinished, mFirstFailed);
+
+			final Properties properties = new Properties();
+			properties.setProperty(KEY_REGION, describeRegion());
+			properties.setProperty(KEY_NEXT_TILE, Long.toString(nextUnfinished));
+			final File tempFile = new File(mProgressFile.getPath() + ".tmp");
+			OutputStream out = null;
+			try {
+				out = new FileOutputStream(tempFile);
+				properties.store(out, null);
+				out.close();
+				out = null;
+				if(!tempFile.renameTo(mProgressFile)) {
+					Log.e(TAG, "persistProgress - could not rename " + tempFile);
+				}
+			} catch(IOException e) {
+				Log.e(TAG, "persistProgress", e);
+			} finally {
+				Utils.close(out);
+			}
+		}
+	}
+
+	private String describeRegion() {
+		return String.format(Locale.US, "%s:%.6f,%.6f,%.6f,%.6f:%d-%d", mTilesProvider.getClass().getName(), mNorth, mWest,
+		                     mSouth, mEast, mMinZoom, mMaxZoom);
+	}
+
+	private int columns(final int zoom) {
+		return tileX(mEast, zoom) - tileX(mWest, zoom) + 1;
+	}
+
+	private int rows(final int zoom) {
+		return tileY(mSouth, zoom) - tileY(mNorth, zoom) + 1;
+	}
+
+	static int tileX(final double longitude, final int zoom) {
+		final int tiles = 1 << zoom;
+		return clamp((int) Math.floor((longitude + 180) / 360 * tiles), tiles);
+	}
+
+	static int tileY(final double latitude, final int zoom) {
+		final int tiles = 1 << zoom;
+		final double radians = Math.toRadians(latitude);
+		final double y = (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+		return clamp((int) Math.floor(y * tiles), tiles);
+	}
+
+	private static int clamp(final int tile, final int tiles) {
+		return Math.max(0, Math.min(tiles - 1, tile));
+	}
+}
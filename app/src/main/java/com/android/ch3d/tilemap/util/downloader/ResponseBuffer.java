@@ -0,0 +1,21 @@
+package com.android.ch3d.tilemap.util.downloader;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Growable in-memory copy of a response body whose backing array can be handed to a decoder
+ * without copying it, as {@link #toByteArray()} would.
+ */
+public class ResponseBuffer extends ByteArrayOutputStream {
+
+	public ResponseBuffer(final int initialSize) {
+		super(initialSize);
+	}
+
+	/**
+	 * @return The backing array; only the first {@link #size()} bytes are valid
+	 */
+	public synchronized byte[] getBuffer() {
+		return buf;
+	}
+}
@@ -0,0 +1,146 @@
+package com.android.ch3d.tilemap.util.mbtiles;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of read-only connections to an MBTiles file. Every connection keeps its own compiled tile
+ * query, so concurrent reads neither share a statement nor re-prepare one per tile. Connections
+ * are opened on demand, up to the pool size.
+ */
+public class MBTilesConnectionPool {
+
+	private static final String TILE_QUERY =
+			"SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+	private final String mPath;
+
+	private final int mSize;
+
+	// idle connections, and CLOSED once the pool is closed; every taker of CLOSED puts it back
+	private final BlockingQueue<Connection> mIdleConnections = new LinkedBlockingQueue<Connection>();
+
+	private static final Connection CLOSED = new Connection();
+
+	private final AtomicInteger mOpenConnections = new AtomicInteger();
+
+	private volatile boolean mClosed;
+
+	public MBTilesConnectionPool(final File file, final int size) {
+		mPath = file.getAbsolutePath();
+		mSize = size;
+	}
+
+	/**
+	 * Reads a tile blob. Blocks while every connection is busy.
+	 *
+	 * @param row TMS row, counted from the bottom of the map
+	 * @return A descriptor of the tile data the caller must close, or null if the file has no such
+	 * tile or the pool is closed
+	 */
+	public ParcelFileDescriptor queryTile(final int zoom, final int column, final int row) throws InterruptedException {
+		final Connection connection = acquire();
+		if(connection == null) {
+			return null;
+		}
+		try {
+			final SQLiteStatement statement = connection.mTileStatement;
+			statement.bindLong(1, zoom);
+			statement.bindLong(2, column);
+			statement.bindLong(3, row);
+			return statement.simpleQueryForBlobFileDescriptor();
+		} catch(SQLiteDoneException e) {
+			return null;
+		} finally {
+			connection.mTileStatement.clearBindings();
+			release(connection);
+		}
+	}
+
+	/**
+	 * Closes the idle connections and wakes the reads waiting for one; connections in use are
+	 * closed when they are released.
+	 */
+	public void close() {
+		mClosed = true;
+		Connection connection;
+		while((connection = mIdleConnections.poll()) != null) {
+			if(connection != CLOSED) {
+				connection.close();
+			}
+		}
+		mIdleConnections.offer(CLOSED);
+	}
+
+	/**
+	 * @return A connection, or null if the pool is closed
+	 */
+	private Connection acquire() throws InterruptedException {
+		if(mClosed) {
+			return null;
+		}
+		Connection connection = mIdleConnections.poll();
+		if(connection == null) {
+			if(mOpenConnections.incrementAndGet() <= mSize) {
+				try {
+					return new Connection(mPath);
+				} catch(RuntimeException e) {
+					mOpenConnections.decrementAndGet();
+					throw e;
+				}
+			}
+			mOpenConnections.decrementAndGet();
+			connection = mIdleConnections.take();
+		}
+		if(connection == CLOSED) {
+			// wake the next waiter too
+			mIdleConnections.offer(CLOSED);
+			return null;
+		}
+		if(mClosed) {
+			// released while the pool was being closed
+			release(connection);
+			return null;
+		}
+		return connection;
+	}
+
+	private void release(final Connection connection) {
+		if(mClosed) {
+			mOpenConnections.decrementAndGet();
+			connection.close();
+		} else {
+			mIdleConnections.offer(connection);
+		}
+	}
+
+	private static class Connection {
+		private final SQLiteDatabase mDatabase;
+
+		private final SQLiteStatement mTileStatement;
+
+		// the CLOSED marker
+		private Connection() {
+			mDatabase = null;
+			mTileStatement = null;
+		}
+
+		Connection(final String path) {
+			mDatabase = SQLiteDatabase.openDatabase(path, null,
+			                                        SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			mTileStatement = mDatabase.compileStatement(TILE_QUERY);
+		}
+
+		void close() {
+			mTileStatement.close();
+			mDatabase.close();
+		}
+	}
+}
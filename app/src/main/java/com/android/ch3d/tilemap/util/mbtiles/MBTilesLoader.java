@@ -0,0 +1,78 @@
+package com.android.ch3d.tilemap.util.mbtiles;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.android.ch3d.tilemap.model.TileKey;
+import com.android.ch3d.tilemap.util.ImageUtils;
+import com.android.ch3d.tilemap.util.ImageWorker;
+import com.android.ch3d.tilemap.util.Utils;
+
+import java.io.File;
+
+/**
+ * Loads tiles from a local MBTiles file. The tiles are already on disk, so they bypass the
+ * network and the disk cache and only go into the memory cache.
+ */
+public class MBTilesLoader extends ImageWorker {
+
+	private static final String TAG = MBTilesLoader.class.getSimpleName();
+
+	private final MBTilesConnectionPool mConnectionPool;
+
+	private final int mImgSize;
+
+	/**
+	 * @param connections Number of reads that can run at the same time, usually the loader thread count
+	 */
+	public MBTilesLoader(final Context context, final File file, final int connections, final int imgSize) {
+		super(context);
+		mConnectionPool = new MBTilesConnectionPool(file, connections);
+		mImgSize = imgSize;
+	}
+
+	@Override
+	protected boolean usesDiskCache() {
+		return false;
+	}
+
+	@Override
+	protected Bitmap processBitmap(final long key, final String url) {
+		final int zoom = TileKey.zoom(key);
+		// MBTiles stores rows in TMS order, counted from the bottom of the map
+		final int row = (1 << zoom) - 1 - TileKey.y(key);
+		ParcelFileDescriptor descriptor = null;
+		try {
+			descriptor = mConnectionPool.queryTile(zoom, TileKey.x(key), row);
+			if(descriptor == null) {
+				return null;
+			}
+			return ImageUtils.decodeSampledBitmapFromDescriptor(descriptor.getFileDescriptor(), mImgSize, mImgSize,
+			                                                    getImageCache());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(SQLiteException e) {
+			Log.e(TAG, "processBitmap", e);
+		} finally {
+			Utils.close(descriptor);
+		}
+		return null;
+	}
+
+	@Override
+	protected Bitmap processBitmap(final String url) {
+		// tiles are addressed by their key, see processBitmap(long, String)
+		return null;
+	}
+
+	/**
+	 * Closes the file. Cancel the loads first, see {@link ImageWorker#cancelAllLoads()}; a load
+	 * still reading gets no tile.
+	 */
+	public void close() {
+		mConnectionPool.close();
+	}
+}
@@ -0,0 +1,234 @@
+package com.android.ch3d.tilemap.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Off-screen copy of the tiles around the viewport. Tiles are composited once into slots of a
+ * wrap-around grid (tile x lives in column x mod columns), so scrolling never moves pixels inside
+ * the surface; only slots taken over by a newly exposed tile are redrawn.
+ * <p/>
+ * Every slot is a bitmap of its own rather than a region of one large bitmap: a slot is as small
+ * as a tile, far below the 2048 pixel texture limit of many older GPUs whatever the screen size,
+ * and compositing a tile re-uploads only that slot's texture.
+ */
+class TileSurface {
+
+	private static final int EMPTY_COLOR = Color.BLACK;
+
+	// what the pixels of a slot show
+	private static final byte CONTENT_NONE = 0;
+
+	private static final byte CONTENT_PLACEHOLDER = 1;
+
+	private static final byte CONTENT_TILE = 2;
+
+	private final int mTileWidth;
+
+	private final int mTileHeight;
+
+	private final boolean mOpaque;
+
+	private final Paint mEmptyPaint = new Paint();
+
+	private final Rect mDst = new Rect();
+
+	private final Canvas mCanvas = new Canvas();
+
+	private int mColumns;
+
+	private int mRows;
+
+	// allocated when a tile first claims the slot, reused by the tiles claiming it after
+	private Bitmap[] mSlotBitmaps;
+
+	// tile owning each slot and what has been composited into it
+	private int[] mSlotX;
+
+	private int[] mSlotY;
+
+	private byte[] mSlotContent;
+
+	/**
+	 * @param opaque Whether every tile covers its whole rect, so the surface needs no alpha channel
+	 */
+	TileSurface(final int tileWidth, final int tileHeight, final boolean opaque) {
+		mTileWidth = tileWidth;
+		mTileHeight = tileHeight;
+		mOpaque = opaque;
+		mEmptyPaint.setColor(EMPTY_COLOR);
+	}
+
+	/**
+	 * Makes the surface large enough for a viewport of the given size plus a margin of tiles on
+	 * each side. Content is dropped if the surface has to grow.
+	 */
+	void ensureSize(final int viewWidth, final int viewHeight, final int margin) {
+		final int columns = (viewWidth + mTileWidth - 1) / mTileWidth + 1 + 2 * margin;
+		final int rows = (viewHeight + mTileHeight - 1) / mTileHeight + 1 + 2 * margin;
+		if(mSlotBitmaps != null && columns <= mColumns && rows <= mRows) {
+			return;
+		}
+		release();
+		mColumns = columns;
+		mRows = rows;
+		mSlotBitmaps = new Bitmap[columns * rows];
+		mSlotX = new int[columns * rows];
+		mSlotY = new int[columns * rows];
+		mSlotContent = new byte[columns * rows];
+		for(int i = 0; i < mSlotX.length; i++) {
+			mSlotX[i] = Integer.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @return true if the tile's own pixels are already in the surface
+	 */
+	boolean isComposited(final int x, final int y) {
+		return contentOf(x, y) == CONTENT_TILE;
+	}
+
+	/**
+	 * @return true if the tile's slot shows a placeholder for it
+	 */
+	boolean hasPlaceholder(final int x, final int y) {
+		return contentOf(x, y) == CONTENT_PLACEHOLDER;
+	}
+
+	private byte contentOf(final int x, final int y) {
+		final int slot = slotOf(x, y);
+		return mSlotX[slot] == x && mSlotY[slot] == y ? mSlotContent[slot] : CONTENT_NONE;
+	}
+
+	/**
+	 * Hands the tile's slot over to it. A slot taken from another tile is cleared so the old tile
+	 * does not show through while the new one loads.
+	 */
+	void claim(final int x, final int y) {
+		final int slot = slotOf(x, y);
+		if(mSlotX[slot] == x && mSlotY[slot] == y) {
+			return;
+		}
+		mSlotX[slot] = x;
+		mSlotY[slot] = y;
+		mSlotContent[slot] = CONTENT_NONE;
+		if(mSlotBitmaps[slot] == null) {
+			mSlotBitmaps[slot] = Bitmap.createBitmap(mTileWidth, mTileHeight,
+			                                         mOpaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+		}
+		clearSlot(slot);
+	}
+
+	/**
+	 * Returns the canvas to composite the tile with and sets outRect to the tile's bounds in it.
+	 * The tile must have claimed the slot.
+	 */
+	Canvas getSlot(final int x, final int y, final Rect outRect) {
+		final int slot = slotOf(x, y);
+		if(!mOpaque) {
+			// a translucent tile would blend with the placeholder drawn into the slot before it
+			clearSlot(slot);
+		}
+		mCanvas.setBitmap(mSlotBitmaps[slot]);
+		outRect.set(0, 0, mTileWidth, mTileHeight);
+		return mCanvas;
+	}
+
+	private void clearSlot(final int slot) {
+		mSlotBitmaps[slot].eraseColor(mOpaque ? EMPTY_COLOR : Color.TRANSPARENT);
+	}
+
+	/**
+	 * Records what was composited into the tile's slot. A slot showing a placeholder is not drawn
+	 * again until {@link #invalidateTile} reports the tile loaded.
+	 *
+	 * @param tile true if the tile itself was drawn, false for a placeholder or nothing
+	 */
+	void setComposited(final int x, final int y, final boolean tile) {
+		mSlotContent[slotOf(x, y)] = tile ? CONTENT_TILE : CONTENT_PLACEHOLDER;
+	}
+
+	/**
+	 * Draws the part of the surface covering the given area of content coordinates to the top-left
+	 * corner of the canvas, one bitmap per tile.
+	 *
+	 * @param left Content x of the area, relative to the origin tile; may exceed the int range
+	 */
+	void draw(final Canvas canvas, final long left, final long top, final int width, final int height) {
+		final long firstX = floorDiv(left, mTileWidth);
+		final long firstY = floorDiv(top, mTileHeight);
+		final int startLeft = (int) (firstX * mTileWidth - left);
+		final int startTop = (int) (firstY * mTileHeight - top);
+
+		int y = (int) firstY;
+		for(int dstTop = startTop; dstTop < height; dstTop += mTileHeight, y++) {
+			int x = (int) firstX;
+			for(int dstLeft = startLeft; dstLeft < width; dstLeft += mTileWidth, x++) {
+				final int slot = slotOf(x, y);
+				if(mSlotX[slot] == x && mSlotY[slot] == y) {
+					canvas.drawBitmap(mSlotBitmaps[slot], dstLeft, dstTop, null);
+				} else if(mOpaque) {
+					// outside the map, or not composited yet
+					mDst.set(dstLeft, dstTop, dstLeft + mTileWidth, dstTop + mTileHeight);
+					canvas.drawRect(mDst, mEmptyPaint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the tile for compositing again, e.g. because a newer bitmap for it was loaded. The
+	 * slot keeps showing its pixels until then.
+	 */
+	void invalidateTile(final int x, final int y) {
+		if(mSlotContent == null) {
+			return;
+		}
+		final int slot = slotOf(x, y);
+		if(mSlotX[slot] == x && mSlotY[slot] == y) {
+			mSlotContent[slot] = CONTENT_NONE;
+		}
+	}
+
+	/**
+	 * Forgets every composited tile so all of them are drawn again.
+	 */
+	void invalidateAll() {
+		if(mSlotContent != null) {
+			for(int i = 0; i < mSlotContent.length; i++) {
+				mSlotX[i] = Integer.MIN_VALUE;
+				mSlotContent[i] = CONTENT_NONE;
+			}
+		}
+	}
+
+	void release() {
+		if(mSlotBitmaps != null) {
+			for(int i = 0; i < mSlotBitmaps.length; i++) {
+				if(mSlotBitmaps[i] != null) {
+					mSlotBitmaps[i].recycle();
+					mSlotBitmaps[i] = null;
+				}
+			}
+			mSlotBitmaps = null;
+			mCanvas.setBitmap(null);
+		}
+	}
+
+	private int slotOf(final int x, final int y) {
+		return floorMod(y, mRows) * mColumns + floorMod(x, mColumns);
+	}
+
+	private static int floorMod(final int value, final int divisor) {
+		final int mod = value % divisor;
+		return mod < 0 ? mod + divisor : mod;
+	}
+
+	private static long floorDiv(final long value, final long divisor) {
+		final long div = value / divisor;
+		return value % divisor < 0 ? div - 1 : div;
+	}
+}
@@ -3,20 +3,26 @@ package com.android.ch3d.tilemap.widget;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.android.ch3d.tilemap.BuildConfig;
 import com.android.ch3d.tilemap.R;
 import com.android.ch3d.tilemap.model.TilesManager;
-import com.android.ch3d.tilemap.util.Utils;
+import com.android.ch3d.tilemap.util.ImageWorker;
 
 /**
  * Created by Ch3D on 22.04.2015.
+ *
+ * Shows the map through a virtual viewport: a camera in 64-bit world pixel coordinates of the
+ * current zoom. The view has no content size of its own and never scrolls; the visible tile range
+ * is computed from the camera, so memory and work only depend on the size of the screen.
  */
 public class TileView extends View {
 
@@ -25,45 +31,75 @@ public class TileView extends View {
 
     private static final int DEFAULT_TILE_HEIGHT = DEFAULT_TILE_WIDTH;
 
-    private static final int DEFAULT_COLUMNS_COUNT = 10;
+    // tiles kept in the composited surface on each side of the viewport
+    private static final int SURFACE_MARGIN = 1;
 
-    private static final int DEFAULT_ROWS_COUNT = DEFAULT_COLUMNS_COUNT;
+    // a pinch that ends past half way to the next zoom level snaps to it
+    private static final float ZOOM_SNAP_SCALE = (float) Math.sqrt(2);
 
     private int mTileWidth = -1;
 
     private int mTileHeight = -1;
 
-    private int mColumnsCount;
+    // world pixel at the top-left corner of the view; the world is 2^zoom tiles wide, more pixels
+    // than an int holds at high zooms
+    private long mCameraX;
 
-    private int mRowsCount;
-
-    private int mXPos = 0;
-
-    private int mYPos = 0;
+    private long mCameraY;
 
     private float mTouchX = -1;
 
     private float mTouchY = -1;
 
-    private int mDisplayHeight;
+    private int mViewWidth;
 
-    private int mDisplayWidth;
+    private int mViewHeight;
 
     private TilesManager mTilesManager;
 
-    private int mLastLeftIndexX;
+    // visible tiles (inclusive), indexed relative to the origin tile of the tiles manager
+    private int mFirstColumn;
+
+    private int mLastColumn;
+
+    private int mFirstRow;
+
+    private int mLastRow;
+
+    private boolean mVisibleRangeStale = true;
+
+    private VelocityTracker mVelocityTracker;
+
+    private int mPrefetchLookaheadMs;
+
+    private int mPrefetchRing;
+
+    private int mLastPrefetchLeft;
+
+    private int mLastPrefetchTop;
+
+    private int mLastPrefetchRight;
+
+    private int mLastPrefetchBottom;
+
+    private boolean mPrefetchRangeStale = true;
+
+    private boolean mCompositedRendering;
+
+    private TileSurface mSurface;
 
-    private int mLastRightIndexX;
+    private final Rect mTileRect = new Rect();
 
-    private int mLastTopIndexY;
+    private ScaleGestureDetector mScaleDetector;
 
-    private int mLastBottomIndexY;
+    private int mZoom;
 
-    private int mToolbarHeight;
+    // scale of an unfinished pinch, applied on top of the current zoom until it snaps
+    private float mPendingScale = 1f;
 
-    private int mStatusBarHeight;
+    private float mScaleFocusX;
 
-    private int mNavBarHeight;
+    private float mScaleFocusY;
 
     public TileView(final Context context) {
         this(context, null);
@@ -81,8 +117,7 @@ public class TileView extends View {
         if (ta != null) {
             mTileWidth = ta.getDimensionPixelSize(R.styleable.TileView_tileWidth, DEFAULT_TILE_WIDTH);
             mTileHeight = ta.getDimensionPixelSize(R.styleable.TileView_tileHeight, DEFAULT_TILE_HEIGHT);
-            mColumnsCount = ta.getDimensionPixelSize(R.styleable.TileView_columnsCount, DEFAULT_COLUMNS_COUNT);
-            mRowsCount = ta.getDimensionPixelSize(R.styleable.TileView_rowsCount, DEFAULT_ROWS_COUNT);
+            mCompositedRendering = ta.getBoolean(R.styleable.TileView_compositedRendering, false);
             ta.recycle();
         }
 
@@ -97,123 +132,426 @@ public class TileView extends View {
 
     }
 
-    private int getChildIndex(final int i, final int j) {
-        return (j * mColumnsCount) + i;
+    private void init() {
+        mPrefetchLookaheadMs = getResources().getInteger(R.integer.config_prefetch_lookahead_ms);
+        mPrefetchRing = getResources().getInteger(R.integer.config_prefetch_ring);
+
+        mScaleDetector = new ScaleGestureDetector(getContext(), mScaleListener);
     }
 
-    private void init() {
-        mToolbarHeight = getResources().getDimensionPixelSize(R.dimen.toolbar_height);
-        mStatusBarHeight = 0;
-        mNavBarHeight = Utils.getNavigationBarHeight(getContext());
+    /**
+     * In composited mode tiles are drawn once into an off-screen surface around the viewport and
+     * each frame only draws the surface's slot bitmaps, instead of a cache lookup and draw per
+     * visible tile.
+     */
+    public void setCompositedRendering(final boolean compositedRendering) {
+        if (mCompositedRendering == compositedRendering) {
+            return;
+        }
+        mCompositedRendering = compositedRendering;
+        if (!compositedRendering && mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        invalidate();
+    }
 
-        final DisplayMetrics displayMetrics = getContext().getResources().getDisplayMetrics();
-        mDisplayHeight = displayMetrics.heightPixels;
-        mDisplayWidth = displayMetrics.widthPixels;
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mSurface != null) {
+            mSurface.release();
+            mSurface = null;
+        }
+        if (mTilesManager != null) {
+            mTilesManager.releaseFrames();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(final int w, final int h, final int oldw, final int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mViewWidth = w;
+        mViewHeight = h;
+        if (mTilesManager != null) {
+            mCameraX = clampCameraX(mCameraX);
+            mCameraY = clampCameraY(mCameraY);
+            mVisibleRangeStale = true;
+            updateVisibleTiles();
+        }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        if (mTilesManager == null || mViewWidth == 0 || mViewHeight == 0) {
+            return;
+        }
+
+        final boolean scaled = mPendingScale != 1f;
+        if (scaled) {
+            canvas.save();
+            canvas.scale(mPendingScale, mPendingScale, mScaleFocusX, mScaleFocusY);
+        }
 
-        for (int i = mLastLeftIndexX; i < (mLastRightIndexX + 2); i++) {
-            for (int j = mLastTopIndexY; j < (mLastBottomIndexY + 2); j++) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Trying to load tile for [" + i + ", " + j + "]");
+        mTilesManager.beginFrame();
+        if (mCompositedRendering) {
+            drawComposited(canvas);
+        } else {
+            final long offsetX = getOriginPixelX() - mCameraX;
+            final long offsetY = getOriginPixelY() - mCameraY;
+            for (int i = mFirstColumn; i <= mLastColumn; i++) {
+                for (int j = mFirstRow; j <= mLastRow; j++) {
+                    final int left = (int) (offsetX + (long) i * mTileWidth);
+                    final int top = (int) (offsetY + (long) j * mTileHeight);
+                    mTileRect.set(left, top, left + mTileWidth, top + mTileHeight);
+                    mTilesManager.drawTile(i, j, canvas, mTileRect);
                 }
-                mTilesManager.drawBitmap(i, j, canvas);
             }
         }
 
-//        mTilesManager.drawBitmap(0, 1, canvas);
-//        mTilesManager.drawBitmap(0, 2, canvas);
-//        mTilesManager.drawBitmap(0, 3, canvas);
-//        mTilesManager.drawBitmap(1, 0, canvas);
-//        mTilesManager.drawBitmap(1, 1, canvas);
-//        mTilesManager.drawBitmap(1, 2, canvas);
-//        mTilesManager.drawBitmap(1, 3, canvas);
+        mTilesManager.endFrame();
+
+        if (scaled) {
+            canvas.restore();
+        }
     }
 
-    @Override
-    protected void onMeasure(final int widthMeasureSpec, final int heightMeasureSpec) {
-        setMeasuredDimension(mTileWidth * mColumnsCount, mTileHeight * mRowsCount);
+    private void drawComposited(final Canvas canvas) {
+        if (mSurface == null) {
+            mSurface = new TileSurface(mTileWidth, mTileHeight, mTilesManager.hasOpaqueTiles());
+        }
+        mSurface.ensureSize(mViewWidth, mViewHeight, SURFACE_MARGIN);
+
+        for (int i = mFirstColumn; i <= mLastColumn; i++) {
+            for (int j = mFirstRow; j <= mLastRow; j++) {
+                if (mSurface.isComposited(i, j)
+                        || (mSurface.hasPlaceholder(i, j) && mTilesManager.isTileLoading(i, j))) {
+                    // a placeholder is drawn again once the tile's load ends
+                    continue;
+                }
+                mSurface.claim(i, j);
+                final Canvas slotCanvas = mSurface.getSlot(i, j, mTileRect);
+                mSurface.setComposited(i, j, mTilesManager.drawTile(i, j, slotCanvas, mTileRect));
+            }
+        }
+        mSurface.draw(canvas, mCameraX - getOriginPixelX(), mCameraY - getOriginPixelY(), mViewWidth, mViewHeight);
+    }
+
+    /**
+     * @return World pixel of the left edge of the tiles manager's origin tile on the current zoom
+     */
+    private long getOriginPixelX() {
+        return (long) mTilesManager.getOriginX(mZoom) * mTileWidth;
+    }
+
+    private long getOriginPixelY() {
+        return (long) mTilesManager.getOriginY(mZoom) * mTileHeight;
+    }
+
+    /**
+     * @return Number of tiles across the world on the current zoom
+     */
+    private long getWorldTiles() {
+        return 1L << mZoom;
+    }
+
+    private long clampCameraX(final long x) {
+        return clampCamera(x, getWorldTiles() * mTileWidth, mViewWidth);
+    }
+
+    private long clampCameraY(final long y) {
+        return clampCamera(y, getWorldTiles() * mTileHeight, mViewHeight);
+    }
+
+    private static long clampCamera(final long position, final long worldSize, final int viewSize) {
+        if (worldSize <= viewSize) {
+            // the whole world fits, keep it centered
+            return (worldSize - viewSize) / 2;
+        }
+        return Math.max(0, Math.min(position, worldSize - viewSize));
+    }
+
+    /**
+     * Moves the camera, clamped to the world, and redraws if it moved.
+     *
+     * @return true if the camera moved
+     */
+    private boolean moveCamera(final long x, final long y) {
+        final long cameraX = clampCameraX(x);
+        final long cameraY = clampCameraY(y);
+        if (cameraX == mCameraX && cameraY == mCameraY) {
+            return false;
+        }
+        mCameraX = cameraX;
+        mCameraY = cameraY;
+        invalidate();
+        return true;
     }
 
     @Override
     public boolean onTouchEvent(final MotionEvent event) {
-        switch (event.getAction()) {
+        if (mVelocityTracker == null) {
+            mVelocityTracker = VelocityTracker.obtain();
+        }
+        mVelocityTracker.addMovement(event);
+        mScaleDetector.onTouchEvent(event);
+
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
                 mTouchX = event.getX();
                 mTouchY = event.getY();
                 break;
 
+            case MotionEvent.ACTION_POINTER_DOWN:
+            case MotionEvent.ACTION_POINTER_UP:
+                // the tracked pointer may change, pick panning up again on the next move
+                mTouchX = -1;
+                mTouchY = -1;
+                break;
+
             case MotionEvent.ACTION_MOVE:
+                if (mScaleDetector.isInProgress() || event.getPointerCount() > 1 || mTilesManager == null) {
+                    break;
+                }
                 if (mTouchX == -1 || mTouchY == -1) {
+                    mTouchX = event.getX();
+                    mTouchY = event.getY();
                     break;
                 }
 
-                final float difX = mTouchX - event.getX();
-                final float difY = mTouchY - event.getY();
-
-                mXPos += difX;
-                mYPos += difY;
-
-                final int newX = Math.max(0, Math.min(mXPos, getMeasuredWidth() - mDisplayWidth));
-                final int newY = Math.max(0, Math.min(mYPos, getMeasuredHeight() - mDisplayHeight + mToolbarHeight + mStatusBarHeight
-                        + mNavBarHeight));
+                // whole pixels only, the remainder carries over to the next move
+                final int difX = (int) (mTouchX - event.getX());
+                final int difY = (int) (mTouchY - event.getY());
+                if (difX == 0 && difY == 0) {
+                    break;
+                }
+                mTouchX -= difX;
+                mTouchY -= difY;
 
-                if (getScrollX() != newX || getScrollY() != newY) {
-                    scrollTo(newX, newY);
-                    mTouchX = event.getX();
-                    mTouchY = event.getY();
+                if (moveCamera(mCameraX + difX, mCameraY + difY)) {
+                    updateVisibleTiles();
+                    prefetchAhead();
                 }
-                mXPos = newX;
-                mYPos = newY;
                 break;
 
             case MotionEvent.ACTION_UP:
-                final int right = mXPos + mDisplayWidth;
-                final int bottom = mYPos + mDisplayHeight;
-
-                updateVisibleTiles(mXPos, mYPos, right, bottom);
+            case MotionEvent.ACTION_CANCEL:
+                updateVisibleTiles();
                 mTouchX = -1;
                 mTouchY = -1;
+                mVelocityTracker.recycle();
+                mVelocityTracker = null;
                 break;
         }
         return true;
     }
 
+    /**
+     * Predicts where the viewport will be after the prefetch lookahead at the current pan velocity
+     * and prefetches the tiles around it.
+     */
+    private void prefetchAhead() {
+        if (mTilesManager == null || !mTilesManager.isPrefetchEnabled()) {
+            return;
+        }
+        mVelocityTracker.computeCurrentVelocity(1000);
+        // content scrolls against the finger
+        final long predictedX = clampCameraX(mCameraX - (long) (mVelocityTracker.getXVelocity() * mPrefetchLookaheadMs / 1000))
+                - getOriginPixelX();
+        final long predictedY = clampCameraY(mCameraY - (long) (mVelocityTracker.getYVelocity() * mPrefetchLookaheadMs / 1000))
+                - getOriginPixelY();
+
+        final int left = Math.max(getMinColumn(), (int) floorDiv(predictedX, mTileWidth) - mPrefetchRing);
+        final int top = Math.max(getMinRow(), (int) floorDiv(predictedY, mTileHeight) - mPrefetchRing);
+        final int right = Math.min(getMaxColumn(), (int) floorDiv(predictedX + mViewWidth - 1, mTileWidth) + mPrefetchRing);
+        final int bottom = Math.min(getMaxRow(), (int) floorDiv(predictedY + mViewHeight - 1, mTileHeight) + mPrefetchRing);
+
+        if (!mPrefetchRangeStale && left == mLastPrefetchLeft && top == mLastPrefetchTop && right == mLastPrefetchRight
+                && bottom == mLastPrefetchBottom) {
+            return;
+        }
+        mPrefetchRangeStale = false;
+        mLastPrefetchLeft = left;
+        mLastPrefetchTop = top;
+        mLastPrefetchRight = right;
+        mLastPrefetchBottom = bottom;
+        mTilesManager.prefetch(left, top, right, bottom);
+    }
+
+    // bounds of the world in tile indices relative to the origin tile, inclusive
+    private int getMinColumn() {
+        return -mTilesManager.getOriginX(mZoom);
+    }
+
+    private int getMaxColumn() {
+        return (int) (getWorldTiles() - 1) - mTilesManager.getOriginX(mZoom);
+    }
+
+    private int getMinRow() {
+        return -mTilesManager.getOriginY(mZoom);
+    }
+
+    private int getMaxRow() {
+        return (int) (getWorldTiles() - 1) - mTilesManager.getOriginY(mZoom);
+    }
+
+    private static long floorDiv(final long value, final long divisor) {
+        final long quotient = value / divisor;
+        return (value % divisor != 0 && (value < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+
     public void renderTiles() {
-        updateVisibleTiles(mXPos, mYPos, mDisplayWidth, mDisplayHeight);
+        updateVisibleTiles();
     }
 
     public void setTilesManager(final TilesManager tilesManager) {
+        if (mTilesManager != null) {
+            mTilesManager.setOnTileLoadedListener(null);
+            mTilesManager.releaseFrames();
+        }
         mTilesManager = tilesManager;
+        if (tilesManager != null) {
+            tilesManager.setOnTileLoadedListener(mOnTileLoadedListener);
+            mZoom = tilesManager.getZoom();
+            // start with the origin tile in the top-left corner
+            mCameraX = clampCameraX(getOriginPixelX());
+            mCameraY = clampCameraY(getOriginPixelY());
+            if (mSurface != null) {
+                // the new provider's tiles may need another surface config
+                mSurface.release();
+                mSurface = null;
+            }
+            mVisibleRangeStale = true;
+            mPrefetchRangeStale = true;
+            updateVisibleTiles();
+        }
     }
 
-    private void updateVisibleTiles(final int left, final int top, final int right, final int bottom) {
-        final int leftIndexX = left / mTileWidth;
-        final int rightIndexX = right / mTileWidth;
-        final int topIndexY = top / mTileHeight;
-        final int bottomIndexY = bottom / mTileHeight;
+    /**
+     * Zooms by the given number of levels around the given point of the view.
+     *
+     * @return true if the zoom changed
+     */
+    public boolean zoomBy(final int levels, final float focusX, final float focusY) {
+        if (mTilesManager == null) {
+            return false;
+        }
+        final int oldZoom = mZoom;
+        final int zoom = mTilesManager.setZoom(oldZoom + levels);
+        if (zoom == oldZoom) {
+            return false;
+        }
+
+        // keep the map point under the focus in place
+        final long focusPixelX = mCameraX + (int) focusX;
+        final long focusPixelY = mCameraY + (int) focusY;
+        final long scaledX = zoom > oldZoom ? focusPixelX << (zoom - oldZoom) : focusPixelX >> (oldZoom - zoom);
+        final long scaledY = zoom > oldZoom ? focusPixelY << (zoom - oldZoom) : focusPixelY >> (oldZoom - zoom);
 
-        if (mLastBottomIndexY == bottomIndexY && mLastLeftIndexX == leftIndexX &&
-                mLastRightIndexX == rightIndexX && mLastTopIndexY == topIndexY) {
-            // skip
-            Log.d(TAG, "Skip tiles update");
+        mZoom = zoom;
+        mCameraX = clampCameraX(scaledX - (int) focusX);
+        mCameraY = clampCameraY(scaledY - (int) focusY);
+
+        if (mSurface != null) {
+            mSurface.invalidateAll();
+        }
+        // force the visible and prefetch ranges to be recomputed for the new zoom
+        mVisibleRangeStale = true;
+        mPrefetchRangeStale = true;
+        updateVisibleTiles();
+        invalidate();
+        return true;
+    }
+
+    private final ScaleGestureDetector.SimpleOnScaleGestureListener mScaleListener =
+            new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                @Override
+                public boolean onScale(final ScaleGestureDetector detector) {
+                    mScaleFocusX = detector.getFocusX();
+                    mScaleFocusY = detector.getFocusY();
+                    mPendingScale = Math.max(0.5f, Math.min(2f, mPendingScale * detector.getScaleFactor()));
+                    if (mPendingScale >= 2f && zoomBy(1, mScaleFocusX, mScaleFocusY)) {
+                        mPendingScale /= 2f;
+                    } else if (mPendingScale <= 0.5f && zoomBy(-1, mScaleFocusX, mScaleFocusY)) {
+                        mPendingScale *= 2f;
+                    }
+                    invalidate();
+                    return true;
+                }
+
+                @Override
+                public void onScaleEnd(final ScaleGestureDetector detector) {
+                    if (mPendingScale >= ZOOM_SNAP_SCALE) {
+                        zoomBy(1, mScaleFocusX, mScaleFocusY);
+                    } else if (mPendingScale <= 1 / ZOOM_SNAP_SCALE) {
+                        zoomBy(-1, mScaleFocusX, mScaleFocusY);
+                    }
+                    mPendingScale = 1f;
+                    invalidate();
+                }
+            };
+
+    private final ImageWorker.OnTileLoadedListener mOnTileLoadedListener = new ImageWorker.OnTileLoadedListener() {
+        @Override
+        public void onTileLoaded(final int x, final int y) {
+            if (mSurface != null) {
+                mSurface.invalidateTile(x, y);
+            }
+            invalidateTile(x, y);
+        }
+    };
+
+    private void invalidateTile(final int x, final int y) {
+        if (mTilesManager == null) {
+            return;
+        }
+        if (mPendingScale != 1f) {
+            // the tile is drawn scaled around the pinch focus
+            invalidate();
+            return;
+        }
+        final long left = (long) x * mTileWidth + getOriginPixelX() - mCameraX;
+        final long top = (long) y * mTileHeight + getOriginPixelY() - mCameraY;
+        if (left >= mViewWidth || top >= mViewHeight || left + mTileWidth <= 0 || top + mTileHeight <= 0) {
             return;
         }
+        invalidate((int) left, (int) top, (int) left + mTileWidth, (int) top + mTileHeight);
+    }
 
+    private void updateVisibleTiles() {
+        if (mTilesManager == null || mViewWidth == 0 || mViewHeight == 0) {
+            return;
+        }
+        final long contentX = mCameraX - getOriginPixelX();
+        final long contentY = mCameraY - getOriginPixelY();
+        final int firstColumn = Math.max(getMinColumn(), (int) floorDiv(contentX, mTileWidth));
+        final int lastColumn = Math.min(getMaxColumn(), (int) floorDiv(contentX + mViewWidth - 1, mTileWidth));
+        final int firstRow = Math.max(getMinRow(), (int) floorDiv(contentY, mTileHeight));
+        final int lastRow = Math.min(getMaxRow(), (int) floorDiv(contentY + mViewHeight - 1, mTileHeight));
+
+        if (!mVisibleRangeStale && mFirstColumn == firstColumn && mLastColumn == lastColumn &&
+                mFirstRow == firstRow && mLastRow == lastRow) {
+            // skip
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Skip tiles update");
+            }
+            return;
+        }
 
         if (BuildConfig.DEBUG) {
-            Log.d(TAG, "Visible tiles x = [" + leftIndexX + ", " + rightIndexX + "]");
-            Log.d(TAG, "Visible tiles y = [" + topIndexY + ", " + bottomIndexY + "]");
+            Log.d(TAG, "Visible tiles x = [" + firstColumn + ", " + lastColumn + "]");
+            Log.d(TAG, "Visible tiles y = [" + firstRow + ", " + lastRow + "]");
         }
 
-        mLastLeftIndexX = leftIndexX;
-        mLastRightIndexX = rightIndexX;
-        mLastTopIndexY = topIndexY;
-        mLastBottomIndexY = bottomIndexY;
+        mVisibleRangeStale = false;
+        mFirstColumn = firstColumn;
+        mLastColumn = lastColumn;
+        mFirstRow = firstRow;
+        mLastRow = lastRow;
+
+        mTilesManager.onViewportChanged(firstColumn, firstRow, lastColumn, lastRow);
 
-        invalidate(0, 0, 100, 100);
+        invalidate();
     }
 }